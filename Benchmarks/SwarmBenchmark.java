@@ -0,0 +1,203 @@
+package Benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.sun.management.OperatingSystemMXBean;
+
+import Peer.Peer;
+import Peer.PeerConfig;
+import Peer.RunnerMode;
+import Peer.SwarmHost;
+import Peer.TCPClient;
+
+/**
+ * Runs a whole swarm on loopback inside this JVM and reports how long the file
+ * took to reach every peer, when each peer finished, the bytes sent in frames
+ * over all connections, and the CPU time the process used, then checks that
+ * every peer ends up with a copy identical to the seed's. Peers linger a few
+ * seconds after the swarm completes, so they exit well after full distribution.
+ *
+ * The first peer seeds a random file, the others start empty. Peer i listens
+ * on 127.0.0.(i + 1), so the ports in PeerInfo don't collide. The peers share
+ * one {@link SwarmHost}, as the swarms of a peerProcess do.
+ *
+ * Usage: java Benchmarks.SwarmBenchmark [peers] [fileSizeMB] [pieceSizeKB] [thread|nio|virtual] [Key=Value ...]
+ * The Key=Value pairs go into the generated Common.small.cfg, e.g. PieceSelection=random.
+ * Run from a scratch directory, it writes the config files, peer_[id]/ and logs there.
+ * A full mesh of N peers takes some N * N sockets, so raise the open file limit
+ * for large swarms.
+ */
+public class SwarmBenchmark {
+
+    private static final int FIRST_PEER_ID = 1001;
+    private static final int BASE_PORT = 17000;
+    private static final int MAX_PEERS = 250; // one loopback address each
+    private static final String FILE_NAME = "swarm.dat";
+    private static final long TIMEOUT_MILLIS = 10 * 60 * 1000;
+    private static final long POLL_MILLIS = 5;
+
+    public static void main(String[] args) throws Exception {
+        final int numPeers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int fileSize = (args.length > 1 ? Integer.parseInt(args[1]) : 16) * 1024 * 1024;
+        final int pieceSize = (args.length > 2 ? Integer.parseInt(args[2]) : 64) * 1024;
+        final String mode = args.length > 3 ? args[3].toUpperCase() : "NIO";
+        if (numPeers < 2 || numPeers > MAX_PEERS) {
+            System.out.println("Between 2 and " + MAX_PEERS + " peers please");
+            return;
+        }
+
+        writeConfig(numPeers, fileSize, pieceSize, Arrays.copyOfRange(args, Math.min(4, args.length), args.length));
+        for (int i = 0; i < numPeers; i++) {
+            deleteDirectory(new File("peer_" + (FIRST_PEER_ID + i)));
+            new File("log_peer_" + (FIRST_PEER_ID + i) + ".log").delete();
+        }
+        new File(FILE_NAME + ".sha256").delete();
+        File seedFile = new File("peer_" + FIRST_PEER_ID + "/" + FILE_NAME);
+        writeRandomFile(seedFile, fileSize);
+
+        // the seeder first, it creates the piece hashes the others verify against
+        SwarmHost host = new SwarmHost();
+        SwarmPeer[] peers = new SwarmPeer[numPeers];
+        for (int i = 0; i < numPeers; i++)
+            peers[i] = new SwarmPeer(FIRST_PEER_ID + i, RunnerMode.valueOf(mode), host);
+
+        OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpuStart = os.getProcessCpuTime();
+        long start = System.nanoTime();
+        for (SwarmPeer peer : peers)
+            peer.start();
+
+        long[] finishedNanos = new long[numPeers];
+        Arrays.fill(finishedNanos, -1);
+        boolean running = true;
+        while (running && System.nanoTime() - start < TIMEOUT_MILLIS * 1_000_000) {
+            running = false;
+            for (int i = 0; i < numPeers; i++) {
+                if (finishedNanos[i] < 0 && peers[i].isFinished())
+                    finishedNanos[i] = System.nanoTime() - start;
+                running |= peers[i].thread.isAlive();
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double cpuSeconds = (os.getProcessCpuTime() - cpuStart) / 1e9;
+
+        boolean passed = !running;
+        long lastFinished = 0;
+        long bytesSent = 0;
+        for (int i = 0; i < numPeers; i++) {
+            if (finishedNanos[i] < 0)
+                passed = false;
+            lastFinished = Math.max(lastFinished, finishedNanos[i]);
+            bytesSent += peers[i].getBytesSent();
+        }
+
+        System.out.println(String.format("%d peers, %d MB file in %d KB pieces, %s", numPeers,
+                fileSize / (1024 * 1024), pieceSize / 1024, mode.toLowerCase()));
+        for (int i = 0; i < numPeers; i++)
+            System.out.println(String.format("peer %d  %s", peers[i].id,
+                    i == 0 ? "seed" : finishedNanos[i] < 0 ? "unfinished" : String.format("%.3f s", finishedNanos[i] / 1e9)));
+
+        byte[] expected = digest(seedFile);
+        for (int i = 1; i < numPeers; i++) {
+            File copy = new File("peer_" + peers[i].id + "/" + FILE_NAME);
+            if (!copy.exists() || copy.length() != fileSize || !Arrays.equals(expected, digest(copy))) {
+                System.out.println("peer " + peers[i].id + " has a different file");
+                passed = false;
+            }
+        }
+
+        long distributed = (long) fileSize * (numPeers - 1);
+        System.out.println(String.format("full distribution   %.3f s", lastFinished / 1e9));
+        System.out.println(String.format("all peers exited    %.3f s", seconds));
+        System.out.println(String.format("bytes sent          %d (%.3f of the file copies)", bytesSent,
+                bytesSent / (double) distributed));
+        System.out.println(String.format("throughput          %.1f MB/s", distributed / (1024.0 * 1024) / (lastFinished / 1e9)));
+        System.out.println(String.format("cpu time            %.3f s (%.2f cpu-s/GB)", cpuSeconds,
+                cpuSeconds / (distributed / (1024.0 * 1024 * 1024))));
+        System.out.println(passed ? "PASSED" : "FAILED");
+
+        host.close();
+        // unfinished peers keep non-daemon threads around
+        System.exit(passed ? 0 : 1);
+    }
+
+    // A peer of the swarm and the thread running its TCPClient
+    private static class SwarmPeer {
+        final int id;
+        final Thread thread;
+        private final Peer peer;
+
+        SwarmPeer(int id, RunnerMode mode, SwarmHost host) {
+            this.id = id;
+            this.peer = new Peer(id, new PeerConfig(new File(".")), host);
+            TCPClient client = new TCPClient(peer, mode);
+            thread = new Thread(client::run, "swarm-peer-" + id);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        boolean isFinished() {
+            return peer.hasFile();
+        }
+
+        long getBytesSent() {
+            return peer.getMetrics().getBytesSent();
+        }
+    }
+
+    private static void writeConfig(int numPeers, int fileSize, int pieceSize, String[] extra) throws IOException {
+        try (FileWriter writer = new FileWriter("Common.small.cfg")) {
+            writer.write("NumberOfPreferredNeighbors " + Math.min(4, numPeers - 1) + "\n");
+            writer.write("UnchokingInterval 1\nOptimisticUnchokingInterval 2\n");
+            writer.write("FileName " + FILE_NAME + "\nFileSize " + fileSize + "\nPieceSize " + pieceSize + "\n");
+            for (String setting : extra)
+                writer.write(setting.replace('=', ' ') + "\n");
+        }
+        try (FileWriter writer = new FileWriter("PeerInfo.small.cfg")) {
+            for (int i = 0; i < numPeers; i++)
+                writer.write(String.format("%d 127.0.0.%d %d %d\n", FIRST_PEER_ID + i, i + 1, BASE_PORT + i,
+                        i == 0 ? 1 : 0));
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] contents = directory.listFiles();
+        if (contents != null)
+            for (File file : contents)
+                file.delete();
+        directory.delete();
+    }
+
+    private static void writeRandomFile(File file, int size) throws IOException {
+        file.getParentFile().mkdirs();
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(size);
+            out.write(data);
+        }
+    }
+
+    private static byte[] digest(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            for (int read = in.read(buffer); read > 0; read = in.read(buffer))
+                digest.update(buffer, 0, read);
+        }
+        return digest.digest();
+    }
+}
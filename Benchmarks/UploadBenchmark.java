@@ -0,0 +1,121 @@
+package Benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import Messaging.FrameChannel;
+import Messaging.Message;
+import Messaging.MessageType;
+import Peer.FileManager;
+import Peer.PeerConfig;
+import Peer.Piece;
+
+/**
+ * Compares serving PIECE messages the old way (read the piece into an array,
+ * copy it behind the index, copy it again into the encoded frame) with the
+ * transferTo path, over a loopback socket drained by a second thread.
+ *
+ * Usage: java Benchmarks.UploadBenchmark [fileSizeMB] [pieceSizeKB] [rounds]
+ * Run from a scratch directory, it creates peer_9999/ and a config file there.
+ */
+public class UploadBenchmark {
+
+    private static final int PEER_ID = 9999;
+
+    public static void main(String[] args) throws Exception {
+        final int fileSize = (args.length > 0 ? Integer.parseInt(args[0]) : 16) * 1024 * 1024;
+        final int pieceSize = (args.length > 1 ? Integer.parseInt(args[1]) : 256) * 1024;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        File config = File.createTempFile("Common.bench", ".cfg");
+        config.deleteOnExit();
+        try (FileWriter writer = new FileWriter(config)) {
+            writer.write("NumberOfPreferredNeighbors 1\nUnchokingInterval 5\nOptimisticUnchokingInterval 5\n");
+            writer.write("FileName bench.dat\nFileSize " + fileSize + "\nPieceSize " + pieceSize + "\n");
+        }
+        final PeerConfig swarm = new PeerConfig(new File("."), PeerConfig.ReadPeerProperties(config.getPath()));
+        writeRandomFile("peer_" + PEER_ID + "/bench.dat", fileSize);
+
+        final FileManager files = new FileManager(swarm, PEER_ID, true, Runnable::run);
+        final int numPieces = swarm.getPeerCommonProps().getNumberPieces();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread drain = startDrain(server);
+
+            try (SocketChannel socket = SocketChannel.open(server.getLocalAddress())) {
+                FrameChannel channel = new FrameChannel(socket);
+
+                for (int round = 0; round < rounds; round++) {
+                    measure("copy", fileSize, () -> {
+                        for (int i = 0; i < numPieces; i++) {
+                            Piece piece = files.readPiece(i);
+                            byte[] payload = ByteBuffer.allocate(4 + piece.getLength())
+                                    .putInt(piece.getWhichPiece())
+                                    .put(piece.getData())
+                                    .array();
+                            socket.write(ByteBuffer.wrap(new Message(MessageType.PIECE, payload).encode()));
+                        }
+                    });
+                    measure("transferTo", fileSize, () -> {
+                        for (int i = 0; i < numPieces; i++)
+                            channel.write(MessageType.PIECE, i, files.pieceRegion(i));
+                    });
+                }
+            }
+            drain.join();
+        }
+    }
+
+    private interface Upload {
+        void run() throws IOException;
+    }
+
+    private static void measure(String name, int bytes, Upload upload) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+
+        upload.run();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double cpuSeconds = (threads.getCurrentThreadCpuTime() - cpuStart) / 1e9;
+        double gigabytes = bytes / (1024.0 * 1024 * 1024);
+        System.out.println(String.format("%-10s %8.1f MB/s  %8.2f cpu-s/GB", name, bytes / (1024.0 * 1024) / seconds,
+                cpuSeconds / gigabytes));
+    }
+
+    private static Thread startDrain(ServerSocketChannel server) {
+        Thread drain = new Thread(() -> {
+            ByteBuffer sink = ByteBuffer.allocateDirect(1 << 20);
+            try (SocketChannel accepted = server.accept()) {
+                while (accepted.read(sink) >= 0)
+                    sink.clear();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        drain.start();
+        return drain;
+    }
+
+    private static void writeRandomFile(String path, int size) throws IOException {
+        new File(path).getParentFile().mkdirs();
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(size);
+            file.write(data);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package Logging;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes a peer's log on a thread of its own. Logging threads only record the
+ * event in a {@link LogRing}; formatting and file I/O happen here, producing
+ * the same lines as {@link LogFormatter}. The file is flushed whenever the
+ * ring runs empty, so the log trails the events by little more than a burst.
+ *
+ * Should the ring fill up, logging threads wait for room rather than lose
+ * lines the log is expected to have.
+ */
+class AsyncLogWriter implements Runnable {
+
+	private static final int CAPACITY = 8192;
+	private static final long IDLE_WAKEUP_NANOS = 1_000_000_000L;
+	private static final long FULL_WAIT_NANOS = 100_000L;
+
+	private final int id;
+	private final LogRing ring = new LogRing(CAPACITY);
+	private final BufferedWriter out;
+	private final Thread thread;
+
+	private volatile boolean sleeping = false; // parked waiting for events, producers unpark it
+	private volatile boolean closed = false;
+
+	// the timestamp only changes once a second, so it is formatted once a second
+	private long stampSecond = Long.MIN_VALUE;
+	private String stamp;
+	private final StringBuilder line = new StringBuilder(256);
+	private char[] chars = new char[256];
+
+	public AsyncLogWriter(int id, String path) throws IOException {
+		this.id = id;
+		this.out = new BufferedWriter(new FileWriter(path));
+		this.thread = new Thread(this, "peer-" + id + "-logger");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void log(LogEvent event, int peer, int piece, int count, Object detail) {
+		long millis = System.currentTimeMillis();
+		while (!ring.offer(event, millis, peer, piece, count, detail)) {
+			if (closed)
+				return;
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(FULL_WAIT_NANOS);
+		}
+		if (sleeping)
+			LockSupport.unpark(thread);
+	}
+
+	// Writes out what was logged so far and stops; later events are dropped
+	public void close() {
+		closed = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run() {
+		try (out) {
+			while (true) {
+				LogRing.Slot slot = ring.peek();
+				if (slot != null) {
+					write(slot);
+					ring.release();
+					continue;
+				}
+
+				out.flush();
+				if (closed)
+					return;
+
+				sleeping = true;
+				if (ring.peek() == null && !closed) // recheck, an event may have come in before sleeping was set
+					LockSupport.parkNanos(this, IDLE_WAKEUP_NANOS);
+				sleeping = false;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			closed = true; // nobody is left to make room
+		}
+	}
+
+	private void write(LogRing.Slot slot) throws IOException {
+		long second = Math.floorDiv(slot.millis, 1000L);
+		if (second != stampSecond) {
+			stampSecond = second;
+			stamp = LogFormatter.DATE_FORMAT.format(Instant.ofEpochMilli(slot.millis));
+		}
+
+		line.setLength(0);
+		line.append(stamp).append(": ");
+		slot.event.describe(line, id, slot.peer, slot.piece, slot.count, slot.detail);
+		line.append('\n');
+
+		if (chars.length < line.length())
+			chars = new char[line.length() * 2];
+		line.getChars(0, line.length(), chars, 0);
+		out.write(chars, 0, line.length());
+	}
+}
@@ -0,0 +1,74 @@
+package Logging;
+
+/**
+ * The kinds of lines in a peer's log. Each renders its message from the
+ * numbers recorded with it, so the event can be recorded on one thread and
+ * put into words on another.
+ */
+enum LogEvent {
+	CONNECT_TO,
+	CONNECT_FROM,
+	PREFERRED_NEIGHBORS, // detail holds the neighbor ids
+	OPTIMISTIC_NEIGHBOR,
+	UNCHOKED,
+	CHOKED,
+	HAVE,
+	INTERESTED,
+	NOT_INTERESTED,
+	DOWNLOADED,
+	COMPLETE,
+	DEBUG; // detail holds the text
+
+	// Appends the message, without timestamp or newline, of this event logged by peer id
+	void describe(StringBuilder s, int id, int peer, int piece, int count, Object detail) {
+		if (this == DEBUG) {
+			s.append("DEBUG: ").append(detail);
+			return;
+		}
+
+		s.append("Peer ").append(id);
+		switch (this) {
+			case CONNECT_TO:
+				s.append(" makes a connection to Peer ").append(peer).append('.');
+				break;
+			case CONNECT_FROM:
+				s.append(" is connected from Peer ").append(peer).append('.');
+				break;
+			case PREFERRED_NEIGHBORS:
+				s.append(" has the preferred neighbors ");
+				Object[] ids = (Object[]) detail;
+				for (int i = 0; i < ids.length; i++)
+					s.append(i == 0 ? "" : ", ").append(ids[i]);
+				s.append('.');
+				break;
+			case OPTIMISTIC_NEIGHBOR:
+				s.append(" has the optimistically unchoked neighbor ").append(peer).append('.');
+				break;
+			case UNCHOKED:
+				s.append(" is unchoked by ").append(peer).append('.');
+				break;
+			case CHOKED:
+				s.append(" is choked by ").append(peer).append('.');
+				break;
+			case HAVE:
+				s.append(" received a 'have' message from ").append(peer).append(" for the piece ").append(piece)
+						.append('.');
+				break;
+			case INTERESTED:
+				s.append(" received the 'interested' message from ").append(peer).append('.');
+				break;
+			case NOT_INTERESTED:
+				s.append(" received the 'not interested' message from ").append(peer).append('.');
+				break;
+			case DOWNLOADED:
+				s.append(" has downloaded the piece ").append(piece).append(" from ").append(peer)
+						.append(". Now the number of pieces it has is ").append(count).append('.');
+				break;
+			case COMPLETE:
+				s.append(" has downloaded the complete file.");
+				break;
+			default:
+				break;
+		}
+	}
+}
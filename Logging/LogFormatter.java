@@ -1,11 +1,16 @@
 package Logging;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 
 public class LogFormatter extends Formatter {
+    // immutable and thread-safe, unlike SimpleDateFormat, so one serves every record
+    static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
     /**
      * Formats a log record.
      *
@@ -15,9 +20,7 @@ public class LogFormatter extends Formatter {
     
     @Override
     public String format(LogRecord record) {
-        final Date date = new Date(record.getMillis());
-        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        final String formattedDate = dateFormat.format(date);
+        final String formattedDate = DATE_FORMAT.format(Instant.ofEpochMilli(record.getMillis()));
 
         final StringBuilder builder = new StringBuilder();
         builder.append(formattedDate);
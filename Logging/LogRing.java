@@ -0,0 +1,89 @@
+package Logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded queue of log events from any number of threads to a single
+ * consumer. Events are copied into preallocated slots, so enqueueing one
+ * allocates nothing and takes no lock: producers only race on the counter
+ * handing out slots.
+ *
+ * Every slot carries a sequence number saying whose turn it is. It equals the
+ * claim number a producer needs to fill it, becomes one more once the event
+ * is published, and moves on by the ring's size once the consumer is done.
+ */
+class LogRing {
+
+	static class Slot {
+		LogEvent event;
+		long millis;
+		int peer;
+		int piece;
+		int count;
+		Object detail;
+	}
+
+	private final Slot[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong(0); // next claim number
+	private long head = 0; // next slot to consume, only touched by the consumer
+
+	public LogRing(int capacity) {
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+
+		slots = new Slot[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+	}
+
+	// Publishes an event, or returns false if the ring is full
+	public boolean offer(LogEvent event, long millis, int peer, int piece, int count, Object detail) {
+		long claim = tail.get();
+		int index;
+		while (true) {
+			index = (int) (claim & mask);
+			long sequence = sequences.get(index);
+			if (sequence == claim) {
+				if (tail.compareAndSet(claim, claim + 1))
+					break;
+				claim = tail.get();
+			} else if (sequence < claim) {
+				return false; // still holds the event from a lap ago
+			} else {
+				claim = tail.get(); // another producer got there first
+			}
+		}
+
+		Slot slot = slots[index];
+		slot.event = event;
+		slot.millis = millis;
+		slot.peer = peer;
+		slot.piece = piece;
+		slot.count = count;
+		slot.detail = detail;
+		sequences.set(index, claim + 1);
+		return true;
+	}
+
+	// The oldest published event, or null; the slot is the consumer's until release()
+	public Slot peek() {
+		int index = (int) (head & mask);
+		return sequences.get(index) == head + 1 ? slots[index] : null;
+	}
+
+	// Hands the slot returned by peek() back to the producers
+	public void release() {
+		int index = (int) (head & mask);
+		slots[index].detail = null;
+		sequences.set(index, head + slots.length);
+		head++;
+	}
+}
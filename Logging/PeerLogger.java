@@ -5,27 +5,34 @@ import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * A peer's log_peer_[id].log, in its swarm's directory. In async mode events are formatted and written
+ * by a background thread, otherwise through java.util.logging on the calling
+ * thread. DEBUG lines are only kept when debug logging is enabled; callers
+ * building an expensive message should check {@link #isDebugEnabled()} first.
+ */
 public class PeerLogger {
 
 	private FileHandler logFileHandler;
 	private LogFormatter formatter;
 	private Logger logger;
+	private AsyncLogWriter asyncWriter; // null when logging synchronously
+	private final boolean debug;
 	private int id;
 
-	public PeerLogger(int peer_id) {
-		// Declare instance variables
-		FileHandler logFileHandler;
-		LogFormatter formatter;
-		Logger logger;
-		//int id;
-
-    
+	public PeerLogger(int peer_id, String path, boolean async, boolean debug) {
 		this.id = peer_id; // Assign the peer_id to the instance variable id
-
-		// Create a logger with the name "Peer" + id
-		this.logger = Logger.getLogger("Peer" + id);
+		this.debug = debug;
 
 		try {
+			if (async) {
+				this.asyncWriter = new AsyncLogWriter(peer_id, path);
+				return;
+			}
+
+			// Create a logger with the name "Peer" + id, per log file as the same id can be in several swarms
+			this.logger = Logger.getLogger("Peer" + id + "@" + path);
+
 			// Set the logger level to INFO
 			this.logger.setLevel(Level.INFO);
 
@@ -33,83 +40,93 @@ public class PeerLogger {
 			this.logger.setUseParentHandlers(false);
 
 			// Create a new FileHandler for the log file
-			this.logFileHandler = new FileHandler("log_peer_" + peer_id + ".log");
+			this.logFileHandler = new FileHandler(path);
 
 			// Create a new SimpleFormatter
 			this.formatter = new LogFormatter();
 
 			// Set the formatter for the FileHandler
-			//this.logFileHandler.setFormatter(formatter);
+			this.logFileHandler.setFormatter(formatter);
 
 			// Add the FileHandler to the logger
-			//this.logger.addHandler(logFileHandler);
+			this.logger.addHandler(logFileHandler);
 		} catch (Exception e) {
 			e.printStackTrace(); // Print the stack trace for debugging purposes
 
 			// Log an error message indicating that the logger creation failed
 			System.err.println("Failed to create logger for peer " + id);
 		}
-		
+
 	}
 
-	public synchronized void ConnectToLog(int peer_id) {
-		logger.info(String.format("Peer %d makes a connection to Peer %d.", id, peer_id));
+	public boolean isDebugEnabled() {
+		return debug;
 	}
 
-	public synchronized void ConnectFromLog(int peer_id) {
-		logger.info(String.format("Peer %d is connected from Peer %d.", id, peer_id));
+	private void log(LogEvent event, int peer_id, int pieceIndex, int count, Object detail) {
+		if (asyncWriter != null) {
+			asyncWriter.log(event, peer_id, pieceIndex, count, detail);
+		} else if (logger != null) {
+			StringBuilder s = new StringBuilder();
+			event.describe(s, id, peer_id, pieceIndex, count, detail);
+			logger.info(s.toString());
+		}
 	}
 
-	public synchronized void ChangePrefLog(Vector<Integer> preferedNeighbors) {
-		// Use StringBuilder for better performance
-		StringBuilder s = new StringBuilder();
-		s.append("Peer ").append(id).append(" has the preferred neighbors ");
+	// Writes out everything logged so far and closes the log file
+	public void close() {
+		if (asyncWriter != null)
+			asyncWriter.close();
+		else if (logFileHandler != null)
+			logFileHandler.close();
+	}
 
-		// String.join for cleaner code
-		//s.append(String.join(", ", preferredNeighbors.stream().map(String::valueOf).collect(Collectors.toList())));
+	public void ConnectToLog(int peer_id) {
+		log(LogEvent.CONNECT_TO, peer_id, 0, 0, null);
+	}
 
-		// Add period at the end
-		s.append(".");
+	public void ConnectFromLog(int peer_id) {
+		log(LogEvent.CONNECT_FROM, peer_id, 0, 0, null);
+	}
 
-		logger.info(s.toString());
+	public void ChangePrefLog(Vector<Integer> preferedNeighbors) {
+		log(LogEvent.PREFERRED_NEIGHBORS, 0, 0, 0, preferedNeighbors.toArray()); // a copy, the vector changes
 	}
 
-	public synchronized void ChangeOptLog(int peer_id) {
-		logger.info(String.format("Peer %d has the optimistically unchoked neighbor %d.", id, peer_id));
+	public void ChangeOptLog(int peer_id) {
+		log(LogEvent.OPTIMISTIC_NEIGHBOR, peer_id, 0, 0, null);
 	}
 
-	public synchronized void UnchokingLog(int peer_id) {
-		logger.info(String.format("Peer %d is unchoked by %d.", id, peer_id));
+	public void UnchokingLog(int peer_id) {
+		log(LogEvent.UNCHOKED, peer_id, 0, 0, null);
 	}
 
-	public synchronized void ChokingLog(int peer_id) {
-		logger.info(String.format("Peer %d is choked by %d.", id, peer_id));
+	public void ChokingLog(int peer_id) {
+		log(LogEvent.CHOKED, peer_id, 0, 0, null);
 	}
 
-	public synchronized void HaveMessageLog(int peer_id, int pieceIndex) {
-		logger.info(String.format(
-				"Peer %d received a 'have' message from %d for the piece %d.", id, peer_id, pieceIndex));
+	public void HaveMessageLog(int peer_id, int pieceIndex) {
+		log(LogEvent.HAVE, peer_id, pieceIndex, 0, null);
 	}
 
-	public synchronized void InterestedLog(int peer_id) {
-		logger.info(String.format("Peer %d received the 'interested' message from %d.", id, peer_id));
+	public void InterestedLog(int peer_id) {
+		log(LogEvent.INTERESTED, peer_id, 0, 0, null);
 	}
 
-	public synchronized void NotInterestedLog(int peer_id) {
-		logger.info(String.format("Peer %d received the 'not interested' message from %d.", id, peer_id));
+	public void NotInterestedLog(int peer_id) {
+		log(LogEvent.NOT_INTERESTED, peer_id, 0, 0, null);
 	}
 
-	public synchronized void DownloadLog(int peer_id, int pieceIndex, int numTotalPieces) {
-		logger.info(
-				String.format("Peer %d has downloaded the piece %d from %d. Now the number of pieces it has is %d.",
-						id, pieceIndex, peer_id, numTotalPieces));
+	public void DownloadLog(int peer_id, int pieceIndex, int numTotalPieces) {
+		log(LogEvent.DOWNLOADED, peer_id, pieceIndex, numTotalPieces, null);
 	}
 
-	public synchronized void CompleteDownloadLog() {
-		logger.info(String.format("Peer %d has downloaded the complete file.", id));
+	public void CompleteDownloadLog() {
+		log(LogEvent.COMPLETE, 0, 0, 0, null);
 	}
 
-	public synchronized void DebugLog(String log) {
-		logger.info(String.format("DEBUG: %s", log));
+	public void DebugLog(String log) {
+		if (debug)
+			log(LogEvent.DEBUG, 0, 0, 0, log);
 	}
 }
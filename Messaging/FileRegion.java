@@ -0,0 +1,23 @@
+package Messaging;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A range of a file that can be sent as a frame body straight from storage to
+ * the socket, e.g. with {@link java.nio.channels.FileChannel#transferTo}.
+ */
+public interface FileRegion {
+    long length();
+
+    /**
+     * Transfers bytes of the region starting at the given offset into it.
+     *
+     * @return The number of bytes transferred, possibly fewer than requested.
+     */
+    long transferTo(long position, WritableByteChannel target) throws IOException;
+
+    // Called once the region is sent, or won't be, so whatever holds its bytes can be reused
+    default void release() {
+    }
+}
@@ -0,0 +1,188 @@
+package Messaging;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Frame transport over a single socket channel for the thread based runners,
+ * with one reusable buffer per direction. In blocking mode reads park until at
+ * least one whole frame arrived; in non-blocking mode they return right away
+ * when nothing complete is buffered. Writes always go out whole: on a
+ * non-blocking channel whose socket buffer is full they wait on a selector
+ * until it drains, reading whatever arrives meanwhile for the next
+ * {@link #readFrames}. Two peers writing to each other at once then can't
+ * stall each other, as long as a non-blocking channel is read and written by
+ * the same thread.
+ */
+public class FrameChannel implements FrameWriter, Closeable {
+
+    public static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    private final SocketChannel channel;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private volatile Selector writeSelector; // opened the first time a non-blocking write has to wait
+    private SelectionKey writeKey;
+
+    public FrameChannel(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    private void fill() throws IOException {
+        if (channel.read(decoder.buffer()) < 0)
+            throw new EOFException("Connection closed by peer");
+    }
+
+    /**
+     * Reads the handshake from the peer.
+     *
+     * @return The peer ID, or -1 if the channel is non-blocking and it hasn't fully arrived yet.
+     */
+
+    public int readHandshake() throws IOException, IllegalArgumentException {
+        int peerId;
+        while ((peerId = decoder.decodeHandshake()) == -1) {
+            int before = decoder.buffer().position();
+            fill();
+            if (!channel.isBlocking() && decoder.buffer().position() == before)
+                return -1;
+        }
+        return peerId;
+    }
+
+    /**
+     * Reads from the socket and dispatches every complete frame.
+     *
+     * @param handler Receives the decoded frames.
+     * @return The number of frames handled, 0 only for non-blocking channels.
+     */
+
+    public int readFrames(FrameHandler handler) throws IOException {
+        int decoded = decoder.decodeFrames(handler); // frames left over from the previous read
+        while (decoded == 0) {
+            int before = decoder.buffer().position();
+            fill();
+            if (!channel.isBlocking() && decoder.buffer().position() == before)
+                return 0;
+            decoded = decoder.decodeFrames(handler);
+        }
+        return decoded;
+    }
+
+    public synchronized void writeHandshake(int peerId) throws IOException {
+        HandshakeMessage.encode(writeBuffer, peerId);
+        flush(null);
+    }
+
+    public synchronized void write(MessageType type) throws IOException {
+        FrameCodec.encode(writeBuffer, type);
+        flush(null);
+    }
+
+    public synchronized void write(MessageType type, int index) throws IOException {
+        FrameCodec.encode(writeBuffer, type, index);
+        flush(null);
+    }
+
+    public synchronized void write(MessageType type, int index, int offset, int length) throws IOException {
+        FrameCodec.encode(writeBuffer, type, index, offset, length);
+        flush(null);
+    }
+
+    public synchronized void write(MessageType type, byte[] payload) throws IOException {
+        FrameCodec.encodeHeader(writeBuffer, type, payload.length);
+        flush(ByteBuffer.wrap(payload));
+    }
+
+    public synchronized void write(MessageType type, int index, byte[] data) throws IOException {
+        FrameCodec.encodeHeader(writeBuffer, type, 4 + data.length);
+        writeBuffer.putInt(index);
+        flush(ByteBuffer.wrap(data));
+    }
+
+    public synchronized void write(MessageType type, int index, FileRegion data) throws IOException {
+        FrameCodec.encodeHeader(writeBuffer, type, 4 + (int) data.length());
+        writeBuffer.putInt(index);
+        transfer(data);
+    }
+
+    public synchronized void write(MessageType type, int index, int offset, FileRegion data) throws IOException {
+        FrameCodec.encodeHeader(writeBuffer, type, 8 + (int) data.length());
+        writeBuffer.putInt(index);
+        writeBuffer.putInt(offset);
+        transfer(data);
+    }
+
+    // Flushes the header, then sends the region after it and releases it
+    private void transfer(FileRegion data) throws IOException {
+        try {
+            flush(null);
+            long position = 0;
+            while (position < data.length()) {
+                long transferred = data.transferTo(position, channel);
+                if (transferred == 0 && channel.isBlocking()) // a blocking socket always takes something
+                    throw new EOFException("Region ended after " + position + " of " + data.length() + " bytes");
+                if (transferred == 0)
+                    awaitWritable();
+                position += transferred;
+            }
+        } finally {
+            data.release();
+        }
+    }
+
+    // Writes out the encoded header plus an optional body without copying the body
+    private void flush(ByteBuffer body) throws IOException {
+        writeBuffer.flip();
+        try {
+            gather[0] = writeBuffer;
+            gather[1] = body;
+            int count = body == null ? 1 : 2;
+            // until both are out, the header alone when the body is empty
+            while (writeBuffer.hasRemaining() || (body != null && body.hasRemaining())) {
+                if (channel.write(gather, 0, count) == 0)
+                    awaitWritable();
+            }
+        } finally {
+            gather[1] = null;
+            writeBuffer.clear();
+        }
+    }
+
+    // Waits for room in the socket buffer of a non-blocking channel after a write made no progress
+    private void awaitWritable() throws IOException {
+        if (channel.isBlocking())
+            return; // only ever writes 0 bytes when nothing was left to write
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            writeKey = channel.register(writeSelector, SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+        }
+        boolean readable = writeSelector.select() > 0 && writeKey.isReadable();
+        writeSelector.selectedKeys().clear();
+        if (readable) { // the peer may be waiting on us to read before it reads what we write
+            decoder.makeRoom();
+            fill();
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        Selector selector = writeSelector;
+        if (selector != null)
+            selector.wakeup(); // a waiting write fails on the closed channel and lets go of the lock
+        synchronized (this) {
+            if (writeSelector != null)
+                writeSelector.close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package Messaging;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes frames straight into caller supplied buffers. A frame is a 4 byte
+ * length (which counts the whole frame, header included), a 1 byte type and
+ * the payload.
+ */
+public class FrameCodec {
+
+    public static final int LENGTH_PREFIX = 4;
+    public static final int HEADER_LENGTH = 5;
+    public static final int MAX_FRAME_LENGTH = 1 << 26;
+
+    public static int frameLength(int payloadLength) {
+        return payloadLength + HEADER_LENGTH;
+    }
+
+    public static void encodeHeader(ByteBuffer out, MessageType type, int payloadLength) {
+        out.putInt(frameLength(payloadLength));
+        out.put((byte) type.ordinal());
+    }
+
+    public static void encode(ByteBuffer out, MessageType type) {
+        encodeHeader(out, type, 0);
+    }
+
+    public static void encode(ByteBuffer out, MessageType type, int index) {
+        encodeHeader(out, type, 4);
+        out.putInt(index);
+    }
+
+    // three int frame, e.g. a block REQUEST of (index, offset, length)
+    public static void encode(ByteBuffer out, MessageType type, int index, int offset, int length) {
+        encodeHeader(out, type, 12);
+        out.putInt(index);
+        out.putInt(offset);
+        out.putInt(length);
+    }
+
+    public static void encode(ByteBuffer out, MessageType type, byte[] payload) {
+        encodeHeader(out, type, payload.length);
+        out.put(payload);
+    }
+}
@@ -0,0 +1,111 @@
+package Messaging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder over a single reusable buffer. Callers read from the
+ * socket into {@link #buffer()} and then decode whatever complete frames have
+ * arrived; partial frames stay in the buffer until the rest shows up. The
+ * buffer only grows when a frame larger than it arrives, or when asked to
+ * make room.
+ */
+public class FrameDecoder {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private ByteBuffer buffer; // kept in write mode between calls
+
+    public FrameDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FrameDecoder(int initialCapacity) {
+        buffer = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public boolean hasBufferedBytes() {
+        return buffer.position() > 0;
+    }
+
+    /**
+     * Decodes the handshake if all 32 bytes of it have arrived.
+     *
+     * @return The peer ID from the handshake, or -1 if it is still incomplete.
+     */
+
+    public int decodeHandshake() throws IllegalArgumentException {
+        if (buffer.position() < HandshakeMessage.LENGTH)
+            return -1;
+
+        buffer.flip();
+        try {
+            return HandshakeMessage.decode(buffer);
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Hands every complete frame in the buffer to the handler.
+     *
+     * @param handler Receives the decoded frames.
+     * @return The number of frames decoded.
+     */
+
+    public int decodeFrames(FrameHandler handler) throws IOException {
+        int decoded = 0;
+        int needed = 0;
+
+        buffer.flip();
+        try {
+            while (buffer.remaining() >= FrameCodec.LENGTH_PREFIX) {
+                int frameStart = buffer.position();
+                int frameLength = buffer.getInt(frameStart);
+                if (frameLength < FrameCodec.HEADER_LENGTH || frameLength > FrameCodec.MAX_FRAME_LENGTH)
+                    throw new IOException("Invalid frame length " + frameLength);
+                if (buffer.remaining() < frameLength) {
+                    needed = frameLength;
+                    break;
+                }
+
+                int limit = buffer.limit();
+                int frameEnd = frameStart + frameLength;
+                MessageType type = MessageType.fromByte(buffer.get(frameStart + FrameCodec.LENGTH_PREFIX));
+
+                buffer.position(frameStart + FrameCodec.HEADER_LENGTH).limit(frameEnd);
+                handler.onFrame(type, buffer);
+                buffer.limit(limit).position(frameEnd);
+                decoded++;
+            }
+        } finally {
+            buffer.compact();
+        }
+
+        if (needed > buffer.capacity())
+            grow(needed); // frame doesn't fit
+        return decoded;
+    }
+
+    /**
+     * Grows a full buffer so more can be read before decoding, e.g. while a
+     * write waits for a peer that only reads once its own write went through.
+     */
+
+    public void makeRoom() {
+        if (!buffer.hasRemaining())
+            grow(buffer.capacity() * 2);
+    }
+
+    // Keeps the bytes read so far, i.e. partial frames
+    private void grow(int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+    }
+}
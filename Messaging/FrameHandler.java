@@ -0,0 +1,15 @@
+package Messaging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface FrameHandler {
+    /**
+     * Called for every decoded frame. The payload is a window into the decoder's
+     * reusable buffer and is only valid for the duration of the call.
+     *
+     * @param type    The type of the frame.
+     * @param payload The payload, between position and limit.
+     */
+    void onFrame(MessageType type, ByteBuffer payload) throws IOException;
+}
@@ -0,0 +1,22 @@
+package Messaging;
+
+import java.io.IOException;
+
+public interface FrameWriter {
+    void write(MessageType type) throws IOException;
+
+    void write(MessageType type, int index) throws IOException;
+
+    void write(MessageType type, int index, int offset, int length) throws IOException;
+
+    void write(MessageType type, byte[] payload) throws IOException;
+
+    // frame with a 4 byte index followed by data, i.e. PIECE
+    void write(MessageType type, int index, byte[] data) throws IOException;
+
+    // same as above but the data is transferred from storage without copying
+    void write(MessageType type, int index, FileRegion data) throws IOException;
+
+    // block of a piece, i.e. PIECE in block mode, with data transferred from storage
+    void write(MessageType type, int index, int offset, FileRegion data) throws IOException;
+}
@@ -1,8 +1,6 @@
 package Messaging;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 
 public class Handshake {
 
@@ -10,43 +8,39 @@ public class Handshake {
 		void waitFunc();
 	}
 
-	public static synchronized int read(ObjectInputStream in) throws IllegalArgumentException, IOException {
-		int id = HandshakeMessage.read(in);
+	public static int read(FrameChannel channel) throws IllegalArgumentException, IOException {
+		int id = channel.readHandshake();
 		return id;
 	}
 
-	public static synchronized void send(ObjectOutputStream out, int id) throws IOException {
-		out.write(HandshakeMessage.encode(id));
-		out.flush();
+	public static void send(FrameChannel channel, int id) throws IOException {
+		channel.writeHandshake(id);
 	}
 
 	/**
 	 * This method attempts to perform a handshake between two peers in a network.
 	 *
-	 * @param in        The ObjectInputStream to read data from the peer.
-	 * @param out       The ObjectOutputStream to write data to the peer.
+	 * @param channel   The channel to exchange handshakes with the peer over.
 	 * @param senderId  The ID of the sender.
 	 * @param receiverId The ID of the receiver.
-	 * @param waitFunc  A function that is called when waiting for new input.
+	 * @param waitFunc  A function that is called when waiting for new input on a non-blocking channel.
 	 * @return          True if the handshake was successful, false otherwise.
 	 */
 
-	public static synchronized boolean attemptHandshake(ObjectInputStream in, ObjectOutputStream out, int senderId,
-			int receiverId,
+	public static boolean attemptHandshake(FrameChannel channel, int senderId, int receiverId,
 			waitingFunction waitFunc) {
 		try {
 			// Send a handshake message to the peer.
-			Handshake.send(out, senderId);
+			Handshake.send(channel, senderId);
 			System.out.println("Handshake message sent from sender with ID: " + senderId);
 
 			// Wait for a response from the peer.
 			System.out.println("Waiting for a response from the peer...");
-			while (in.available() == 0) {
+			int peerId;
+			while ((peerId = Handshake.read(channel)) == -1) {
 				waitFunc.waitFunc();
 			}
 
-			// Read the response from the peer.
-			int peerId = Handshake.read(in);
 			System.out.println("Received response from peer with ID: " + peerId);
 
 			// Check if the IDs match.
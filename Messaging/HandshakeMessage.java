@@ -1,37 +1,36 @@
 package Messaging;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 public class HandshakeMessage {
 
+    public final static int LENGTH = 32;
+
     final static byte[] HEADER = "P2PFILESHARINGPROJ".getBytes(StandardCharsets.US_ASCII);
 
     public static byte[] encode(int peerID) {
         ByteBuffer b = ByteBuffer.allocate(32);
-        b.put(HEADER);
-        b.put(new byte[10]); // 10 zeroes
-        b.putInt(peerID);
+        encode(b, peerID);
         return b.array();
     }
 
-    public static synchronized int read(ObjectInputStream in) throws IllegalArgumentException, IOException {
-        ByteBuffer b = ByteBuffer.allocate(32);
-
-        // Read bytes from the input stream
-        for (int i = 0; i < 32; i++) {
-            try {
-                b.put(in.readByte());
-            } catch (IOException e) {
-                throw new RuntimeException("Error reading byte from input stream", e);
-            }
-        }
+    public static void encode(ByteBuffer b, int peerID) {
+        b.put(HEADER);
+        for (int i = 0; i < 10; i++) // 10 zeroes
+            b.put((byte) 0);
+        b.putInt(peerID);
+    }
 
-        b.flip();
+    /**
+     * Decodes a handshake from the next 32 bytes of a buffer, advancing its position.
+     *
+     * @param b The buffer holding at least 32 readable bytes.
+     * @return The peer ID carried by the handshake.
+     */
 
+    public static int decode(ByteBuffer b) throws IllegalArgumentException {
         byte[] header = new byte[18];
         b.get(header, 0, 18);
 
@@ -40,13 +39,10 @@ public class HandshakeMessage {
             throw new IllegalArgumentException("Invalid Header");
         }
 
-        // Ensure that the position is set correctly before getting the int
-        if (b.position() != 28) {
-            b.position(28);
-        }
-
+        b.position(b.position() + 10); // skip zero bits
         return b.getInt();
     }
+
 /* 
     final class IllegalHeaderException extends IllegalArgumentException {
         public IllegalHeaderException(String message) {
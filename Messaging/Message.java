@@ -1,12 +1,7 @@
 package Messaging;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
 
-import Peer.Piece;
-
 public class Message {
 
 	private MessageType type;
@@ -39,47 +34,6 @@ public class Message {
 		this.payload = new byte[0];
 	}
 
-	public synchronized static Message read(ObjectInputStream in) throws IOException {
-		Message msg = new Message();
-
-		byte[] l = new byte[4];
-		try {
-			in.readFully(l);
-		} catch (IOException e) {
-			e.printStackTrace();
-			return null;
-		}
-		int payloadLength = ByteBuffer.wrap(l).getInt() - 5;
-
-		byte t;
-		try {
-			t = in.readByte();
-		} catch (IOException e) {
-			e.printStackTrace();
-			return null;
-		}
-		msg.type = MessageType.values()[t];
-
-		msg.payload = new byte[payloadLength];
-		try {
-			in.readFully(msg.payload);
-		} catch (IOException e) {
-			e.printStackTrace();
-			return null;
-		}
-
-		return msg;
-	}
-
-	public synchronized void send(ObjectOutputStream out) {
-		try {
-			out.write(this.encode());
-			out.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-
 	public byte[] encode() {
 		ByteBuffer b = ByteBuffer.allocate(this.getMessageLength());
 		b.putInt(this.getMessageLength());
@@ -105,24 +59,27 @@ public class Message {
 	}
 
 	public String toString() {
+		return describe(type, ByteBuffer.wrap(this.payload));
+	}
+
+	// Formats a frame for debug logs without consuming its payload
+	public static String describe(MessageType type, ByteBuffer payload) {
 		String formattedPayload = "";
 
-		if (this.payload.length == 0)
+		if (!payload.hasRemaining())
 			formattedPayload = "[NO PAYLOAD]";
 
 		else if (type == MessageType.HAVE)
-			formattedPayload = "INDEX " + ByteBuffer.wrap(this.payload).getInt();
+			formattedPayload = "INDEX " + payload.getInt(payload.position());
 
 		else if (type == MessageType.BITFIELD)
 			formattedPayload = "[SOME BITFIELD]";
 
-		else if (type == MessageType.REQUEST)
-			formattedPayload = "INDEX " + ByteBuffer.wrap(this.payload).getInt();
+		else if (type == MessageType.REQUEST || type == MessageType.CANCEL)
+			formattedPayload = "INDEX " + payload.getInt(payload.position());
 
-		else if (type == MessageType.PIECE) {
-			Piece p = Piece.decodePieceMessagePayload(this.payload);
-			formattedPayload = "INDEX " + p.getWhichPiece() + " [SOME DATA]";
-		}
+		else if (type == MessageType.PIECE)
+			formattedPayload = "INDEX " + payload.getInt(payload.position()) + " [SOME DATA]";
 
 		return String.format("[%s Message]: %s", type.name(), formattedPayload);
 	}
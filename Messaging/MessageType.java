@@ -9,4 +9,14 @@ public enum MessageType {
     BITFIELD,
     REQUEST,
     PIECE,
+    CANCEL, // retracts a REQUEST, same payload
+    ;
+
+    private static final MessageType[] VALUES = values(); // values() clones on every call
+
+    public static MessageType fromByte(byte b) throws IllegalArgumentException {
+        if (b < 0 || b >= VALUES.length)
+            throw new IllegalArgumentException("Unknown message type " + b);
+        return VALUES[b];
+    }
 }
@@ -0,0 +1,64 @@
+package Peer;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+/**
+ * Heap bytes allocated by the threads of the process since the meter was
+ * created, as counted by the JVM per thread. Only available on JVMs
+ * implementing com.sun.management.ThreadMXBean, which includes HotSpot.
+ *
+ * The JVM forgets a thread's count when it exits, so every thread's last
+ * count seen is kept; sampling once per choking round means threads that
+ * come and go lose at most their last round.
+ */
+class AllocationRate {
+
+	private final com.sun.management.ThreadMXBean threads; // null if unsupported
+	private final HashMap<Long, Long> lastSeen = new HashMap<>(); // thread id to allocated bytes
+	private final long startBytes;
+	private final long startNanos = System.nanoTime();
+
+	public AllocationRate() {
+		var bean = ManagementFactory.getThreadMXBean();
+		threads = bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+						? (com.sun.management.ThreadMXBean) bean
+						: null;
+		startBytes = sample();
+	}
+
+	// Updates the per-thread counts, returning the total over every thread seen so far
+	public synchronized long sample() {
+		if (threads == null)
+			return -1;
+
+		long[] ids = threads.getAllThreadIds();
+		long[] allocated = threads.getThreadAllocatedBytes(ids);
+		for (int i = 0; i < ids.length; i++)
+			if (allocated[i] >= 0) // -1 for threads that exited meanwhile
+				lastSeen.put(ids[i], allocated[i]);
+
+		long total = 0;
+		for (long bytes : lastSeen.values())
+			total += bytes;
+		return total;
+	}
+
+	// Bytes allocated since creation, or -1 if unavailable
+	public long getAllocatedBytes() {
+		return threads != null ? sample() - startBytes : -1;
+	}
+
+	public double getBytesPerSecond() {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		return seconds > 0 ? Math.max(0, getAllocatedBytes()) / seconds : 0;
+	}
+
+	public String toString() {
+		if (threads == null)
+			return "Heap allocation: not available on this JVM";
+		return String.format("Heap allocation: %.1f MB, %.1f MB/s", getAllocatedBytes() / 1e6,
+				getBytesPerSecond() / 1e6);
+	}
+}
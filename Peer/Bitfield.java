@@ -1,110 +1,226 @@
 package Peer;
 
-import java.util.Vector;
-
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Piece bitfield packed 64 pieces to a word. Piece i lives in bit i % 64 of
+ * word i / 64, which makes the little-endian bytes of the words exactly the
+ * wire format (piece i is bit i % 8 of byte i / 8).
+ *
+ * Reads are plain volatile loads and never block; single bit updates are CAS
+ * loops, and the piece count only moves when a bit actually flips, so
+ * {@link #isFinished()} is a single comparison. The same count tells exactly
+ * when the bitfield becomes (or stops being) finished, which a listener can
+ * be told about.
+ *
+ * Piece indices outside the bitfield throw IndexOutOfBoundsException, so one
+ * can never reach the spare bits of the last word.
+ */
 public class Bitfield {
 
-	private int numPiecesDowned = 0;
-	private Vector<Boolean> bitfield;
+	public interface FinishListener {
+		void onFinishedChanged(boolean finished);
+	}
+
+	private final int size;
+	private final AtomicLongArray words;
+	private final AtomicInteger numPiecesDowned = new AtomicInteger(0);
+	private volatile FinishListener finishListener = null;
 
-	public Bitfield() {
-		int numPieces = PeerConfig.getPeerCommonProps().getNumberPieces();
-		bitfield = new Vector<>(numPieces);
-		for (int i = 0; i < numPieces; i++)
-			bitfield.add(false);
+	public Bitfield(int numPieces) {
+		size = numPieces;
+		words = new AtomicLongArray((numPieces + 63) >>> 6);
 	}
 
 	public int getSize() {
-		return bitfield.size();
+		return size;
+	}
+
+	public void setFinishListener(FinishListener listener) {
+		finishListener = listener;
 	}
 
-	public synchronized void turnOnBit(int which) {
-		if (bitfield.get(which))
-			return;
+	// Reports a change in finished state after the count moved from before to after
+	private void onCountChanged(int before, int after) {
+		FinishListener listener = finishListener;
+		if (listener != null && (before == size) != (after == size))
+			listener.onFinishedChanged(after == size);
+	}
 
-		bitfield.set(which, true);
-		numPiecesDowned++;
+	// mask of the bits in use by the given word, only the last one is partial
+	private long wordMask(int word) {
+		int bitsInLastWord = size & 63;
+		if (word == words.length() - 1 && bitsInLastWord != 0)
+			return (1L << bitsInLastWord) - 1;
+		return -1L;
 	}
 
-	public synchronized void turnOnAll() {
-		for (int i = 0; i < bitfield.size(); i++) {
-			bitfield.set(i, true);
+	// Returns whether the bit was off before, i.e. this call turned it on
+	public boolean turnOnBit(int which) {
+		int word = Objects.checkIndex(which, size) >>> 6;
+		long bit = 1L << which;
+		while (true) {
+			long current = words.get(word);
+			if ((current & bit) != 0)
+				return false;
+			if (words.compareAndSet(word, current, current | bit)) {
+				int after = numPiecesDowned.incrementAndGet();
+				onCountChanged(after - 1, after);
+				return true;
+			}
 		}
-		numPiecesDowned = bitfield.size();
 	}
 
-	public synchronized boolean isFinished() {
-		for (int i = 0; i < bitfield.size(); i++)
-			if (bitfield.get(i).equals(false))
+	// Returns whether the bit was on before, i.e. this call turned it off
+	public boolean turnOffBit(int which) {
+		int word = Objects.checkIndex(which, size) >>> 6;
+		long bit = 1L << which;
+		while (true) {
+			long current = words.get(word);
+			if ((current & bit) == 0)
 				return false;
-		return true;
-		// return numPiecesDowned == bitfield.size();
+			if (words.compareAndSet(word, current, current & ~bit)) {
+				int after = numPiecesDowned.decrementAndGet();
+				onCountChanged(after + 1, after);
+				return true;
+			}
+		}
+	}
+
+	public synchronized void turnOnAll() {
+		for (int i = 0; i < words.length(); i++)
+			words.set(i, wordMask(i));
+		onCountChanged(numPiecesDowned.getAndSet(size), size);
 	}
 
-	public synchronized byte[] encode() {
-		int numBytes = (int) Math.ceil(bitfield.size() / 8.0);
+	public boolean isFinished() {
+		return numPiecesDowned.get() == size;
+	}
 
-		byte[] bytes = new byte[numBytes];
-		for (int i = 0; i < numBytes; i++) {
-			bytes[i] = (byte) 0;
-		}
-		for (int i = 0; i < bitfield.size(); i++) {
-			int whichByte = i / 8;
-			int whichBit = i % 8;
-			if (bitfield.get(i)) {
-				bytes[whichByte] = (byte) (bytes[whichByte] | (1 << whichBit));
+	public byte[] encode() {
+		byte[] bytes = new byte[(size + 7) >>> 3];
+		encode(ByteBuffer.wrap(bytes));
+		return bytes;
+	}
+
+	// Writes the wire format straight into a buffer, e.g. a BITFIELD frame
+	public void encode(ByteBuffer out) {
+		int numBytes = (size + 7) >>> 3;
+		ByteOrder order = out.order();
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < words.length(); i++) {
+			long word = words.get(i);
+			int bytesInWord = Math.min(8, numBytes - (i << 3));
+			if (bytesInWord == 8) {
+				out.putLong(word);
 			} else {
-				bytes[whichByte] = (byte) (bytes[whichByte] & ~(1 << whichBit));
+				for (int b = 0; b < bytesInWord; b++)
+					out.put((byte) (word >>> (b << 3)));
 			}
 		}
+		out.order(order);
+	}
 
-		return bytes;
+	public void setBitField(byte[] bytes) {
+		setBitField(ByteBuffer.wrap(bytes));
 	}
 
-	public synchronized void setBitField(byte[] bytes) {
-		numPiecesDowned = 0;
-		for (int i = 0; i < bitfield.size(); i++) {
-			int whichByte = i / 8;
-			int whichBit = i % 8;
-			if ((bytes[whichByte] & (1 << whichBit)) == 0) {
-				bitfield.set(i, false);
+	// Reads the wire format straight from a buffer, e.g. a BITFIELD payload
+	public synchronized void setBitField(ByteBuffer in) {
+		ByteOrder order = in.order();
+		in.order(ByteOrder.LITTLE_ENDIAN);
+
+		int count = 0;
+		for (int i = 0; i < words.length(); i++) {
+			long word = 0;
+			if (in.remaining() >= 8) {
+				word = in.getLong();
 			} else {
-				bitfield.set(i, true);
-				numPiecesDowned++;
+				for (int b = 0; in.hasRemaining() && b < 8; b++)
+					word |= (in.get() & 0xFFL) << (b << 3);
 			}
+			word &= wordMask(i); // ignore spare bits
+			words.set(i, word);
+			count += Long.bitCount(word);
 		}
+		onCountChanged(numPiecesDowned.getAndSet(count), count);
+
+		in.order(order);
 	}
 
-	public synchronized int getInterestingIndex(Bitfield b) {
-		for (int i = 0; i < bitfield.size(); i++) {
-			if (!bitfield.get(i) && b.getBit(i))
-				return i;
+	/**
+	 * Finds the next piece that the other bitfield has and this one lacks,
+	 * working a word at a time.
+	 *
+	 * @param b    The other bitfield, e.g. a neighbor's.
+	 * @param from The first piece index to consider.
+	 * @return The piece index, or -1 if there is none.
+	 */
+
+	public int nextInteresting(Bitfield b, int from) {
+		if (from >= size)
+			return -1;
+
+		int word = from >>> 6;
+		long candidates = b.words.get(word) & ~words.get(word) & (-1L << from);
+		while (true) {
+			if (candidates != 0) {
+				int index = (word << 6) + Long.numberOfTrailingZeros(candidates);
+				return index < size ? index : -1;
+			}
+			if (++word == words.length())
+				return -1;
+			candidates = b.words.get(word) & ~words.get(word);
 		}
-		return -1;
 	}
 
-	public synchronized String getText() {
-		StringBuffer text = new StringBuffer();
-		for (int i = 0; i < bitfield.size(); i++) {
-			text.append(bitfield.get(i) ? "1" : "0");
+	public int getInterestingIndex(Bitfield b) {
+		return nextInteresting(b, 0);
+	}
+
+	// Number of pieces the other bitfield has that this one lacks
+	public int countInteresting(Bitfield b) {
+		int count = 0;
+		for (int i = 0; i < words.length(); i++)
+			count += Long.bitCount(b.words.get(i) & ~words.get(i));
+		return count;
+	}
+
+	public int nextSetBit(int from) {
+		if (from >= size)
+			return -1;
+
+		int word = from >>> 6;
+		long bits = words.get(word) & (-1L << from);
+		while (bits == 0) {
+			if (++word == words.length())
+				return -1;
+			bits = words.get(word);
 		}
-		return text.toString();
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
 	}
 
-	public synchronized boolean getBit(int i) {
-		return bitfield.get(i);
+	public String getText() {
+		StringBuilder text = new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			text.append(getBit(i) ? "1" : "0");
+		}
+		return text.toString();
 	}
 
-	public synchronized void clear() {
-		for (int i = 0; i < bitfield.size(); i++)
-			bitfield.set(i, false);
+	public boolean getBit(int i) {
+		return (words.get(Objects.checkIndex(i, size) >>> 6) & (1L << i)) != 0;
 	}
 
-	public synchronized int getNumPiecesDowned() {
-		return numPiecesDowned;
+	public int getNumPiecesDowned() {
+		return numPiecesDowned.get();
 	}
 
-	public synchronized int getNumRemainingPieces() {
-		return bitfield.size() - numPiecesDowned;
+	public int getNumRemainingPieces() {
+		return size - numPiecesDowned.get();
 	}
 }
@@ -0,0 +1,80 @@
+package Peer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Download progress kept in peer_[id]/FileName.bitfield so a restarted peer
+ * only fetches what it is missing. The file holds FileSize and PieceSize
+ * followed by the bitfield in wire format, and is replaced atomically so a
+ * crash mid-save leaves the previous checkpoint intact.
+ *
+ * Callers only save bits whose piece is written, so a checkpoint never claims
+ * more than what is on disk; pieces are still re-verified when loaded.
+ */
+class BitfieldCheckpoint {
+
+	private final PeerConfig config;
+	private final File checkpointFile;
+	private int savedPieces = -1; // pieces in the last checkpoint written
+
+	public BitfieldCheckpoint(PeerConfig config, int peerID) {
+		this.config = config;
+		this.checkpointFile = config.file("peer_" + peerID + "/" + config.getPeerCommonProps().FileName + ".bitfield");
+	}
+
+	public synchronized void save(Bitfield bitfield) {
+		int numPieces = bitfield.getNumPiecesDowned();
+		if (numPieces == savedPieces)
+			return;
+
+		var props = config.getPeerCommonProps();
+		File temporary = new File(checkpointFile.getPath() + ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temporary))) {
+				out.writeInt(props.FileSize);
+				out.writeInt(props.PieceSize);
+				out.write(bitfield.encode());
+			}
+			Files.move(temporary.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			savedPieces = numPieces;
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Could not write " + checkpointFile);
+		}
+	}
+
+	/**
+	 * Reads the last checkpoint.
+	 *
+	 * @return The pieces it claims, or null if there is none for this file
+	 *         layout.
+	 */
+
+	public Bitfield load() {
+		if (!checkpointFile.exists())
+			return null;
+
+		var props = config.getPeerCommonProps();
+		try (DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile))) {
+			if (in.readInt() != props.FileSize || in.readInt() != props.PieceSize)
+				return null; // made for another file
+
+			Bitfield claimed = new Bitfield(props.getNumberPieces());
+			byte[] bytes = new byte[(claimed.getSize() + 7) / 8];
+			in.readFully(bytes);
+			claimed.setBitField(bytes);
+			return claimed;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package Peer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("p2p.ChokeRound")
+@Label("Choke Round")
+@Category({ "P2P", "Choking" })
+class ChokeRoundEvent extends Event {
+
+	@Label("Optimistic")
+	boolean optimistic;
+
+	@Label("Preferred Neighbors")
+	String preferred; // regular rounds only
+
+	@Label("Optimistic Neighbor")
+	int optimisticNeighbor = -1; // optimistic rounds only, -1 if nobody was picked
+
+	@Label("Unchoked")
+	int unchoked;
+
+	@Label("Choked")
+	int choked;
+}
@@ -0,0 +1,35 @@
+package Peer;
+
+/**
+ * Append-only log of downloaded piece indices, in completion order. Every
+ * piece completes at most once, so the log never holds more entries than there
+ * are pieces and never needs to grow.
+ *
+ * Connections keep their own cursor into it and announce HAVE for the entries
+ * past it, so an announcement costs O(new pieces) instead of a bitfield scan.
+ * Appends are serialized; reads take no lock, since the volatile size is only
+ * bumped after the entry is stored.
+ */
+class CompletionLog {
+
+	private final int[] entries;
+	private volatile int size = 0;
+
+	public CompletionLog(int numPieces) {
+		entries = new int[numPieces];
+	}
+
+	public synchronized void append(int pieceIndex) {
+		entries[size] = pieceIndex;
+		size = size + 1;
+	}
+
+	// Position just past the last entry, i.e. a cursor that has seen everything so far
+	public int size() {
+		return size;
+	}
+
+	public int get(int position) {
+		return entries[position];
+	}
+}
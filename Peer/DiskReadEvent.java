@@ -0,0 +1,28 @@
+package Peer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("p2p.DiskRead")
+@Label("Piece Read")
+@Category({ "P2P", "Storage" })
+class DiskReadEvent extends Event {
+
+	@Label("Piece")
+	int piece;
+
+	@Label("Bytes")
+	@DataAmount
+	int bytes;
+
+	void record(int piece, int bytes) {
+		if (!shouldCommit())
+			return;
+		this.piece = piece;
+		this.bytes = bytes;
+		commit();
+	}
+}
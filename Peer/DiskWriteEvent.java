@@ -0,0 +1,36 @@
+package Peer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("p2p.DiskWrite")
+@Label("Piece Write")
+@Category({ "P2P", "Storage" })
+class DiskWriteEvent extends Event {
+
+	@Label("First Piece")
+	int piece;
+
+	@Label("Pieces")
+	int pieces;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+	@Label("Synced")
+	boolean synced;
+
+	void record(int piece, int pieces, long bytes, boolean synced) {
+		if (!shouldCommit())
+			return;
+		this.piece = piece;
+		this.pieces = pieces;
+		this.bytes = bytes;
+		this.synced = synced;
+		commit();
+	}
+}
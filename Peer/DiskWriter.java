@@ -0,0 +1,187 @@
+package Peer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind stage between the connections and the disk. Downloaded pieces
+ * are handed to a queue and written out by a task on the disk pool, so a slow
+ * disk holds up nothing but the pool. Queueing never blocks: once capacity
+ * pieces are waiting the queue reports itself full, connections hold back
+ * further requests, and onDrained tells them when there is room again. Each
+ * round the task takes everything queued and writes pieces with consecutive
+ * indices as one write. At most one round per file runs at a time, and a
+ * round that leaves more queued resubmits itself rather than keep the thread,
+ * so files sharing the pool take turns.
+ *
+ * Until its write completes a piece stays readable from memory, which lets it
+ * be announced and served as soon as it is queued. Pieces whose write failed
+ * stay that way and are retried in the next round; until they are on disk
+ * {@link #flush()} reports the failure instead of returning.
+ */
+class DiskWriter implements Runnable {
+
+	private final FileManager files;
+	private final Executor pool;
+	private final int capacity;
+	private final ConcurrentLinkedQueue<Piece> queue = new ConcurrentLinkedQueue<>();
+	private final ArrayList<Piece> retries = new ArrayList<>(); // failed writes, only touched by the round
+	private final AtomicInteger pending = new AtomicInteger(); // queued or failed, i.e. not on disk yet
+	private final AtomicBoolean scheduled = new AtomicBoolean(false); // a round is submitted or running
+	private final ConcurrentHashMap<Integer, Piece> unwritten = new ConcurrentHashMap<>();
+
+	private long submitted = 0; // guarded by this, like written, rounds and failure
+	private long written = 0;
+	private long rounds = 0;
+	private IOException failure = null; // from the last round, if any of its writes failed
+	private final ArrayList<Long> flushTargets = new ArrayList<>(); // submitted counts afterFlush tasks wait for
+	private final ArrayList<Runnable> flushTasks = new ArrayList<>();
+	private volatile boolean stalled = false; // someone found the queue full and wants to hear when it isn't
+	private volatile Runnable onDrained = () -> {};
+
+	public DiskWriter(FileManager files, int capacity, Executor pool) {
+		this.files = files;
+		this.pool = pool;
+		this.capacity = capacity;
+	}
+
+	// Queues the piece without waiting; isFull is how the disk falling behind is pushed back on
+	public void write(Piece piece) {
+		piece.retain(); // released once written
+		unwritten.put(piece.getWhichPiece(), piece);
+		synchronized (this) {
+			submitted++;
+		}
+		pending.incrementAndGet();
+		queue.add(piece);
+		schedule();
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true))
+			pool.execute(this);
+	}
+
+	public void setOnDrained(Runnable onDrained) {
+		this.onDrained = onDrained;
+	}
+
+	// Whether the queue is full; if so, onDrained runs once there is room again
+	public boolean isFull() {
+		if (pending.get() < capacity)
+			return false;
+		stalled = true;
+		return true;
+	}
+
+	// The piece if it is waiting to be written, otherwise null and it is on disk
+	public Piece getUnwritten(int which) {
+		return unwritten.get(which);
+	}
+
+	/**
+	 * Waits until everything queued so far has been written.
+	 *
+	 * @throws IOException If a round that ran meanwhile failed to write some
+	 *                     of the pieces; they are retried later.
+	 */
+
+	public synchronized void flush() throws IOException {
+		long target = submitted;
+		long startRound = rounds;
+		schedule(); // retries failed writes, if nothing else is queued
+		while (written < target) {
+			if (failure != null && rounds > startRound)
+				throw new IOException("Pieces could not be written to disk", failure);
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while flushing pieces to disk");
+			}
+		}
+	}
+
+	/**
+	 * Runs the task on the disk pool once everything queued so far has been
+	 * written, without waiting for it here. Failed writes hold it back until
+	 * a later round gets them to disk.
+	 */
+
+	public void afterFlush(Runnable task) {
+		synchronized (this) {
+			flushTargets.add(submitted);
+			flushTasks.add(task);
+		}
+		schedule(); // comes back to the task even with nothing queued
+	}
+
+	public void run() {
+		ArrayList<Piece> batch = new ArrayList<>(retries);
+		retries.clear();
+		for (Piece piece; (piece = queue.poll()) != null;)
+			batch.add(piece);
+		batch.sort(Comparator.comparingInt(Piece::getWhichPiece));
+
+		int done = 0;
+		IOException error = null;
+		int start = 0;
+		for (int i = 1; i <= batch.size(); i++) {
+			if (i < batch.size() && batch.get(i).getWhichPiece() == batch.get(i - 1).getWhichPiece() + 1)
+				continue;
+			List<Piece> run = batch.subList(start, i);
+			try {
+				writeRun(run);
+				done += run.size();
+			} catch (IOException e) {
+				e.printStackTrace();
+				error = e;
+				retries.addAll(run); // left in memory, so they can at least still be served
+			}
+			start = i;
+		}
+
+		pending.addAndGet(-done);
+		ArrayList<Runnable> flushed = new ArrayList<>();
+		synchronized (this) {
+			written += done;
+			rounds++;
+			failure = error;
+			notifyAll();
+			for (int i = flushTargets.size() - 1; i >= 0; i--) {
+				if (flushTargets.get(i) <= written) {
+					flushTargets.remove(i);
+					flushed.add(0, flushTasks.remove(i));
+				}
+			}
+		}
+		for (Runnable task : flushed)
+			task.run();
+
+		if (stalled && pending.get() < capacity) {
+			stalled = false;
+			onDrained.run();
+		}
+
+		// pieces queued during the round saw it scheduled and left them to us, failed ones wait for the next
+		scheduled.set(false);
+		if (!queue.isEmpty())
+			schedule();
+	}
+
+	private void writeRun(List<Piece> run) throws IOException {
+		files.writeRun(run);
+		for (Piece piece : run) {
+			unwritten.remove(piece.getWhichPiece(), piece);
+			piece.release();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package Peer;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread multiplexing any number of {@link NioConnection}s.
+ * Work is driven by socket readiness and by tasks posted from other threads
+ * (timer callbacks, other loops finishing a piece); the loop only wakes up on
+ * its own once per {@link #SELECT_TIMEOUT_MS} as a safety net.
+ *
+ * The loop is shared by every peer in the process, so connections of any
+ * number of swarms can be on it. A peer that is done has its connections
+ * closed after a linger; the loop itself runs until {@link #stop()}.
+ */
+class EventLoop implements Runnable {
+
+	private static final long SELECT_TIMEOUT_MS = 1000;
+	private static final long EXIT_LINGER_MS = 5000; // in case any messages need to be retransmitted
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final ArrayList<NioConnection> connections = new ArrayList<>();
+	private final Set<Peer> checksPending = ConcurrentHashMap.newKeySet();
+	private final HashMap<Peer, Long> exitDeadlines = new HashMap<>(); // peers done, closing their connections soon
+	private volatile boolean running = true;
+
+	public EventLoop() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	public void register(NioConnection connection) {
+		execute(() -> {
+			try {
+				connection.register(this, selector);
+				connections.add(connection);
+			} catch (IOException e) {
+				e.printStackTrace();
+				connection.close();
+			}
+		});
+	}
+
+	// Coalesces state change notifications so a burst of them costs a single pass
+	public void scheduleChecks(Peer peer) {
+		if (checksPending.add(peer)) {
+			execute(() -> {
+				checksPending.remove(peer);
+				runChecks(peer);
+			});
+		}
+	}
+
+	private void runChecks() {
+		for (var connection : connections)
+			connection.onStateChange();
+	}
+
+	private void runChecks(Peer peer) {
+		for (var connection : connections)
+			if (connection.getPeer() == peer)
+				connection.onStateChange();
+	}
+
+	// Gives peers that are done a last look at their connections, then closes them once the linger is up
+	private void closeFinishedPeers() {
+		long now = System.currentTimeMillis();
+		for (var connection : connections) {
+			Peer peer = connection.getPeer();
+			if (peer.shouldForceExit() && !exitDeadlines.containsKey(peer)) {
+				runChecks(peer);
+				exitDeadlines.put(peer, now + EXIT_LINGER_MS);
+			}
+		}
+		for (var connection : connections) {
+			Long deadline = exitDeadlines.get(connection.getPeer());
+			if (deadline != null && now >= deadline)
+				connection.close();
+		}
+		connections.removeIf(NioConnection::isClosed);
+		exitDeadlines.keySet().removeIf(peer -> connections.stream().noneMatch(connection -> connection.getPeer() == peer));
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+			task.run();
+	}
+
+	private void processSelectedKeys() {
+		for (SelectionKey key : selector.selectedKeys()) {
+			NioConnection connection = (NioConnection) key.attachment();
+			try {
+				if (key.isValid() && key.isReadable())
+					connection.onReadable();
+				if (key.isValid() && key.isWritable())
+					connection.onWritable();
+			} catch (Exception e) {
+				e.printStackTrace();
+				connection.close();
+			}
+		}
+		selector.selectedKeys().clear();
+	}
+
+	public void run() {
+		try {
+			while (running) {
+				int ready = selector.select(SELECT_TIMEOUT_MS);
+				if (ready > 0)
+					processSelectedKeys();
+				runTasks();
+				connections.removeIf(NioConnection::isClosed);
+
+				if (ready == 0 && tasks.isEmpty())
+					runChecks();
+
+				closeFinishedPeers();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			for (var connection : connections)
+				connection.close();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
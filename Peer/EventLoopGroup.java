@@ -0,0 +1,57 @@
+package Peer;
+
+import java.io.IOException;
+import java.util.Vector;
+
+/**
+ * Fixed set of {@link EventLoop}s that neighbor connections are spread across
+ * round-robin. One group serves every peer in the process, see
+ * {@link SwarmHost}.
+ */
+class EventLoopGroup {
+
+	public static final int DEFAULT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private final Vector<EventLoop> loops = new Vector<>();
+	private final Vector<Thread> threads = new Vector<>();
+	private int nextLoop = 0;
+
+	public EventLoopGroup(int numLoops) throws IOException {
+		for (int i = 0; i < numLoops; i++) {
+			EventLoop loop = new EventLoop();
+			Thread thread = new Thread(loop, "swarm-loop-" + i);
+			thread.setDaemon(true);
+			loops.add(loop);
+			threads.add(thread);
+		}
+	}
+
+	// Timeouts and newly downloaded pieces of the peer wake every loop instead of being polled
+	public void attach(Peer peer) {
+		peer.addStateListener(() -> {
+			for (var loop : loops)
+				loop.scheduleChecks(peer);
+		});
+	}
+
+	public void start() {
+		for (var thread : threads)
+			thread.start();
+	}
+
+	public synchronized EventLoop next() {
+		EventLoop loop = loops.get(nextLoop);
+		nextLoop = (nextLoop + 1) % loops.size();
+		return loop;
+	}
+
+	public void stop() {
+		for (var loop : loops)
+			loop.stop();
+	}
+
+	public void join() throws InterruptedException {
+		for (var thread : threads)
+			thread.join();
+	}
+}
@@ -1,61 +1,300 @@
 package Peer;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Messaging.FileRegion;
 
 public class FileManager {
 
+	private final PeerConfig config;
+	private final Executor diskPool;
 	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedPieceStore mapped; // only set in mmap storage mode
+	private DiskWriter writer; // only set when writes are queued
+	private PieceCache cache; // only set when seeding from file storage with a read cache
+	private int syncEvery = 0; // pieces written between syncs, 0 never syncs while downloading
+	private boolean syncOnComplete = true;
+	private final AtomicInteger unsynced = new AtomicInteger(); // pieces written since the last sync
+	private final LatencyHistogram readLatency = new LatencyHistogram(); // reads by this class, not transferTo
+	private final LatencyHistogram writeLatency = new LatencyHistogram(); // per run of pieces written
+
+	/**
+	 * @param diskPool Runs queued writes and read-ahead, shared with other
+	 *                 peers in the process.
+	 */
 
-	public FileManager(int peerID, boolean hasFile) {
-		String directory = "peer_" + peerID + "/";
-		File dir = new File(directory);
+	public FileManager(PeerConfig config, int peerID, boolean hasFile, Executor diskPool) {
+		this.config = config;
+		this.diskPool = diskPool;
+		File dir = config.file("peer_" + peerID);
 		if (!dir.exists()) {
 			dir.mkdirs();
 		}
-		var props = PeerConfig.getPeerCommonProps();
+		var props = config.getPeerCommonProps();
 		try {
-			file = new RandomAccessFile(directory + props.FileName, "rw");
+			file = new RandomAccessFile(new File(dir, props.FileName), "rw");
+			channel = file.getChannel();
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 			System.out.println("RandomAccessFile constructor failed");
+			return;
+		}
+
+		if (props.StorageMode.equals("mmap")) {
+			try {
+				file.setLength(props.FileSize);
+				mapped = new MappedPieceStore(channel, props.FileSize, props.PieceSize);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Could not memory-map the file, falling back to file storage");
+			}
+		}
+
+		switch (props.SyncPolicy) {
+			case "none":
+				syncOnComplete = false;
+				break;
+			case "complete":
+				break;
+			default:
+				try {
+					syncEvery = Integer.parseInt(props.SyncPolicy);
+				} catch (NumberFormatException e) {
+					System.out.println("Unknown SyncPolicy " + props.SyncPolicy + ", syncing once complete");
+				}
+		}
+
+		if (hasFile && mapped == null && props.ReadCacheSize > 0)
+			cache = new PieceCache(this, props.getNumberPieces(), props.ReadCacheSize / props.PieceSize, diskPool);
+
+		if (!hasFile && props.WriteQueueSize > 0) {
+			writer = new DiskWriter(this, props.WriteQueueSize, diskPool);
 		}
 	}
 
-	public synchronized Piece readPiece(int which) throws IOException {
-		var props = PeerConfig.getPeerCommonProps();
+	public boolean isMapped() {
+		return mapped != null;
+	}
+
+	// Latency of piece reads made here, i.e. not by transferTo
+	public LatencyHistogram getReadLatency() {
+		return readLatency;
+	}
+
+	public LatencyHistogram getWriteLatency() {
+		return writeLatency;
+	}
+
+	// Hit and eviction counts of the read cache, or null without one
+	public PieceCache getCache() {
+		return cache;
+	}
+
+	public PeerConfig getConfig() {
+		return config;
+	}
+
+	public int getPieceLength(int which) {
+		var props = config.getPeerCommonProps();
 
 		int length = props.PieceSize;
 		if (which == props.getNumberPieces() - 1) {
 			length = props.FileSize - props.PieceSize * which;
 		}
+		return length;
+	}
+
+	// Piece contents for sending with transferTo; positional so it needs no lock
+	public FileRegion pieceRegion(int which) throws IOException {
+		return blockRegion(which, 0, getPieceLength(which));
+	}
+
+	public FileRegion blockRegion(int which, int offset, int length) throws IOException {
+		Piece unwritten = writer != null ? writer.getUnwritten(which) : null;
+		if (unwritten != null && unwritten.tryRetain()) // held until sent, so its buffer isn't recycled meanwhile
+			return memoryRegion(unwritten.getData(), offset, length, unwritten);
+		if (cache != null)
+			return memoryRegion(cache.get(which), offset, length, null);
+		if (mapped != null)
+			return mapped.region(which, offset, length);
+
+		final long offSet = (long) which * config.getPeerCommonProps().PieceSize + offset;
+
+		return new FileRegion() {
+			public long length() {
+				return length;
+			}
+
+			public long transferTo(long position, WritableByteChannel target) throws IOException {
+				long transferred = channel.transferTo(offSet + position, length - position, target);
+				// nothing is also what a full non-blocking socket takes, only the size tells them apart
+				if (transferred == 0 && offSet + position >= channel.size())
+					throw new EOFException("Piece " + which + " ends at byte " + position + " of " + length
+							+ ", the file is truncated");
+				return transferred;
+			}
+		};
+	}
 
-		int offSet = which * props.PieceSize;
-		byte[] bytes = new byte[length];
-		file.seek(offSet);
+	private static FileRegion memoryRegion(ByteBuffer piece, int offset, int length, Piece retained) {
+		final ByteBuffer block = piece.slice(offset, length);
 
-		for (int i = 0; i < length; i++) {
-			bytes[i] = file.readByte();
+		return new FileRegion() {
+			public long length() {
+				return length;
+			}
+
+			public long transferTo(long position, WritableByteChannel target) throws IOException {
+				return target.write(block.slice((int) position, length - (int) position));
+			}
+
+			public void release() {
+				if (retained != null)
+					retained.release();
+			}
+		};
+	}
+
+	public Piece readPiece(int which) throws IOException {
+		byte[] bytes = new byte[getPieceLength(which)];
+		readPiece(which, bytes, bytes.length);
+		return new Piece(which, bytes);
+	}
+
+	// Reads by absolute position without taking the lock, so pieces can be read in parallel
+	public void readPiece(int which, byte[] dst, int length) throws IOException {
+		Piece unwritten = writer != null ? writer.getUnwritten(which) : null;
+		if (unwritten != null && unwritten.tryRetain()) {
+			try {
+				unwritten.getData().get(dst, 0, length);
+			} finally {
+				unwritten.release();
+			}
+			return;
+		}
+		if (mapped != null) {
+			DiskReadEvent event = new DiskReadEvent();
+			event.begin();
+			long start = System.nanoTime();
+			mapped.read(which, dst, length);
+			readLatency.record(System.nanoTime() - start);
+			event.record(which, length);
+			return;
 		}
+		readPiece(which, ByteBuffer.wrap(dst, 0, length));
+	}
+
+	// Fills the buffer from the start of the piece on, e.g. a direct buffer
+	public void readPiece(int which, ByteBuffer dst) throws IOException {
+		DiskReadEvent event = new DiskReadEvent();
+		event.begin();
+		long start = System.nanoTime();
+		int first = dst.position();
+		long offSet = (long) which * config.getPeerCommonProps().PieceSize - first;
+		while (dst.hasRemaining()) {
+			if (channel.read(dst, offSet + dst.position()) < 0)
+				throw new IOException("Piece " + which + " is past the end of the file");
+		}
+		readLatency.record(System.nanoTime() - start);
+		event.record(which, dst.position() - first);
+	}
+
+	// Whether downloading more now would only pile up pieces waiting for the disk
+	public boolean isBacklogged() {
+		return writer != null && writer.isFull();
+	}
 
-		Piece piece = new Piece(which, bytes);
-		return piece;
+	// Called when the disk writer catches up after being backlogged
+	public void setOnDrained(Runnable onDrained) {
+		if (writer != null)
+			writer.setOnDrained(onDrained);
+	}
+
+	/**
+	 * Stores a downloaded piece. With a write queue this returns once the piece
+	 * is queued; it reads back from memory until it reaches the disk.
+	 */
 
+	public void writePiece(Piece piece) throws IOException {
+		if (writer != null) {
+			writer.write(piece);
+			return;
+		}
+		writeRun(List.of(piece));
 	}
 
-	public synchronized void writePiece(Piece piece) throws IOException {
-		var props = PeerConfig.getPeerCommonProps();
+	// Writes pieces with consecutive indices, the first one lowest, in a single write
+	void writeRun(List<Piece> run) throws IOException {
+		DiskWriteEvent event = new DiskWriteEvent();
+		event.begin();
+		long start = System.nanoTime();
+		if (mapped != null) {
+			for (Piece piece : run)
+				mapped.write(piece.getWhichPiece(), piece.getData());
+		} else {
+			ByteBuffer[] buffers = new ByteBuffer[run.size()];
+			for (int i = 0; i < buffers.length; i++)
+				buffers[i] = run.get(i).getData();
 
-		int offSet = piece.getWhichPiece() * props.PieceSize;
-		int length = piece.getPieceBytes().length;
-		byte[] tempByte = piece.getPieceBytes();
-		file.seek(offSet);
-		for (int i = 0; i < length; i++) {
-			file.writeByte(tempByte[i]);
+			synchronized (this) { // a gathering write goes through the channel's position, mapped writes need no lock
+				channel.position((long) run.get(0).getWhichPiece() * config.getPeerCommonProps().PieceSize);
+				while (buffers[buffers.length - 1].hasRemaining())
+					channel.write(buffers);
+			}
 		}
 
+		boolean synced = syncEvery > 0 && unsynced.addAndGet(run.size()) >= syncEvery;
+		if (synced)
+			force();
+		writeLatency.record(System.nanoTime() - start);
+		if (event.shouldCommit()) {
+			long bytes = 0;
+			for (Piece piece : run)
+				bytes += piece.getLength();
+			event.record(run.get(0).getWhichPiece(), run.size(), bytes, synced);
+		}
+	}
+
+	private void force() throws IOException {
+		unsynced.set(0); // first, so pieces written while forcing count towards the next sync
+		if (mapped != null)
+			mapped.force();
+		else
+			channel.force(false);
+	}
+
+	// Waits for queued pieces to be written, e.g. before they are checkpointed
+	public void flush() throws IOException {
+		if (writer != null)
+			writer.flush();
+	}
+
+	// Runs the task on the disk pool once queued pieces are written, instead of waiting like flush
+	public void afterFlush(Runnable task) {
+		if (writer != null)
+			writer.afterFlush(task);
+		else
+			diskPool.execute(task); // nothing is queued, pieces are written as they come
+	}
+
+	// Called once the whole file is downloaded, and on exit
+	public void sync() throws IOException {
+		flush();
+		synchronized (this) {
+			if (unsynced.get() > 0 && (syncOnComplete || syncEvery > 0))
+				force();
+		}
 	}
 
 }
@@ -0,0 +1,95 @@
+package Peer;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import Messaging.FileRegion;
+import Messaging.FrameWriter;
+import Messaging.MessageType;
+
+/**
+ * Frames a {@link VirtualThreadRunner} session sends, held until the sender
+ * thread writes them out. The reader writes through it as well, so it never
+ * waits on the socket: a neighbor stuck writing to us gets read, whatever we
+ * are writing to it.
+ */
+class FrameQueue implements FrameWriter {
+
+	// A frame recorded to be written later
+	private interface QueuedFrame {
+		void writeTo(FrameWriter out) throws IOException;
+
+		default void release() {
+		}
+	}
+
+	private final ConcurrentLinkedQueue<QueuedFrame> frames = new ConcurrentLinkedQueue<>();
+	private final Runnable onQueued;
+
+	public FrameQueue(Runnable onQueued) {
+		this.onQueued = onQueued;
+	}
+
+	private void add(QueuedFrame frame) {
+		frames.add(frame);
+		onQueued.run();
+	}
+
+	public void write(MessageType type) {
+		add(out -> out.write(type));
+	}
+
+	public void write(MessageType type, int index) {
+		add(out -> out.write(type, index));
+	}
+
+	public void write(MessageType type, int index, int offset, int length) {
+		add(out -> out.write(type, index, offset, length));
+	}
+
+	public void write(MessageType type, byte[] payload) {
+		add(out -> out.write(type, payload));
+	}
+
+	public void write(MessageType type, int index, byte[] data) {
+		add(out -> out.write(type, index, data));
+	}
+
+	public void write(MessageType type, int index, FileRegion data) {
+		add(new QueuedFrame() {
+			public void writeTo(FrameWriter out) throws IOException {
+				out.write(type, index, data);
+			}
+
+			public void release() {
+				data.release();
+			}
+		});
+	}
+
+	public void write(MessageType type, int index, int offset, FileRegion data) {
+		add(new QueuedFrame() {
+			public void writeTo(FrameWriter out) throws IOException {
+				out.write(type, index, offset, data);
+			}
+
+			public void release() {
+				data.release();
+			}
+		});
+	}
+
+	// Writes out everything queued so far, in order; blocks for as long as the writer does
+	public void drainTo(FrameWriter out) throws IOException {
+		QueuedFrame frame;
+		while ((frame = frames.poll()) != null)
+			frame.writeTo(out);
+	}
+
+	// Drops the frames left once the connection is gone, releasing their regions
+	public void clear() {
+		QueuedFrame frame;
+		while ((frame = frames.poll()) != null)
+			frame.release();
+	}
+}
@@ -0,0 +1,28 @@
+package Peer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("p2p.Handshake")
+@Label("Handshake")
+@Description("From the connection being set up to the neighbor's handshake checking out")
+@Category({ "P2P", "Messaging" })
+class HandshakeEvent extends Event {
+
+	@Label("Neighbor")
+	int neighbor;
+
+	@Label("Succeeded")
+	boolean succeeded;
+
+	void record(int neighbor, boolean succeeded) {
+		if (!shouldCommit())
+			return;
+		this.neighbor = neighbor;
+		this.succeeded = succeeded;
+		commit();
+	}
+}
@@ -0,0 +1,106 @@
+package Peer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in constant memory, in the manner of an HDR
+ * histogram. Below 32 microseconds every value has its own bucket; above,
+ * each power of two is split into 16 buckets, so percentiles come out within
+ * about 6% of the real value anywhere from microseconds to days. Recording
+ * is a couple of atomic increments, safe from any thread and allocation free.
+ */
+public class LatencyHistogram implements LatencyMXBean {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+	private static final int MAX_MAGNITUDE = 40; // 2^40 microseconds is some 12 days
+	private static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+	private static final int NUM_BUCKETS = LINEAR_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong total = new AtomicLong(0); // microseconds over every recorded value
+	private final AtomicLong max = new AtomicLong(0);
+
+	public void record(long nanos) {
+		long micros = Math.min(MAX_VALUE, Math.max(0, nanos / 1000));
+		counts.incrementAndGet(bucketOf(micros));
+		total.addAndGet(micros);
+		max.accumulateAndGet(micros, Math::max);
+	}
+
+	private static int bucketOf(long micros) {
+		if (micros < LINEAR_BUCKETS)
+			return (int) micros;
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+		int top = (int) (micros >>> shift); // in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+		return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+	}
+
+	// The middle of the range of values a bucket stands for
+	private static double valueOf(int bucket) {
+		if (bucket < LINEAR_BUCKETS)
+			return bucket;
+		int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+		long top = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return (top << shift) + ((1L << shift) - 1) / 2.0;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			count += counts.get(i);
+		return count;
+	}
+
+	public double getTotalMillis() {
+		return total.get() / 1e3;
+	}
+
+	public double getMeanMillis() {
+		long count = getCount();
+		return count == 0 ? 0 : getTotalMillis() / count;
+	}
+
+	public double getMaxMillis() {
+		return max.get() / 1e3;
+	}
+
+	/**
+	 * The value below which the given fraction of recorded values fall.
+	 *
+	 * @param quantile Between 0 and 1, e.g. 0.99 for the 99th percentile.
+	 * @return The value in milliseconds, 0 if nothing was recorded.
+	 */
+
+	public double getPercentileMillis(double quantile) {
+		long[] snapshot = new long[NUM_BUCKETS];
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			count += snapshot[i] = counts.get(i);
+		if (count == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(valueOf(i), max.get()) / 1e3;
+		}
+		return getMaxMillis();
+	}
+
+	public double getP50Millis() {
+		return getPercentileMillis(0.5);
+	}
+
+	public double getP90Millis() {
+		return getPercentileMillis(0.9);
+	}
+
+	public double getP99Millis() {
+		return getPercentileMillis(0.99);
+	}
+}
@@ -0,0 +1,19 @@
+package Peer;
+
+/**
+ * JMX view of a {@link LatencyHistogram}.
+ */
+public interface LatencyMXBean {
+
+	long getCount();
+
+	double getMeanMillis();
+
+	double getP50Millis();
+
+	double getP90Millis();
+
+	double getP99Millis();
+
+	double getMaxMillis();
+}
@@ -0,0 +1,78 @@
+package Peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import Messaging.FileRegion;
+
+/**
+ * Memory-mapped view of the shared file. The file is mapped in segments of at
+ * most {@link #MAX_SEGMENT_SIZE} bytes, each holding a whole number of pieces,
+ * so no piece straddles two mappings. Pieces are only ever accessed by
+ * absolute offset, which leaves the buffers' positions alone and lets any
+ * number of threads read and write different pieces without a lock.
+ */
+class MappedPieceStore {
+
+	static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+	private final MappedByteBuffer[] segments;
+	private final int piecesPerSegment;
+	private final int pieceSize;
+
+	public MappedPieceStore(FileChannel channel, long fileSize, int pieceSize) throws IOException {
+		this.pieceSize = pieceSize;
+		this.piecesPerSegment = (int) Math.max(1, MAX_SEGMENT_SIZE / pieceSize);
+
+		long segmentSize = (long) piecesPerSegment * pieceSize;
+		int numSegments = (int) ((fileSize + segmentSize - 1) / segmentSize);
+
+		segments = new MappedByteBuffer[numSegments];
+		for (int i = 0; i < numSegments; i++) {
+			long start = i * segmentSize;
+			segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(segmentSize, fileSize - start));
+		}
+	}
+
+	private MappedByteBuffer segmentOf(int which) {
+		return segments[which / piecesPerSegment];
+	}
+
+	private int offsetOf(int which) {
+		return (which % piecesPerSegment) * pieceSize;
+	}
+
+	public void read(int which, byte[] dst) {
+		read(which, dst, dst.length);
+	}
+
+	public void read(int which, byte[] dst, int length) {
+		segmentOf(which).get(offsetOf(which), dst, 0, length);
+	}
+
+	public void write(int which, ByteBuffer src) {
+		segmentOf(which).put(offsetOf(which), src, src.position(), src.remaining());
+	}
+
+	public FileRegion region(int which, int offset, int length) {
+		final ByteBuffer piece = segmentOf(which).slice(offsetOf(which) + offset, length);
+
+		return new FileRegion() {
+			public long length() {
+				return length;
+			}
+
+			public long transferTo(long position, WritableByteChannel target) throws IOException {
+				return target.write(piece.slice((int) position, length - (int) position));
+			}
+		};
+	}
+
+	public void force() {
+		for (var segment : segments)
+			segment.force();
+	}
+}
@@ -0,0 +1,38 @@
+package Peer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import Messaging.MessageType;
+
+@Name("p2p.MessageSent")
+@Label("Message Sent")
+@Category({ "P2P", "Messaging" })
+@StackTrace(false)
+class MessageSentEvent extends Event {
+
+	@Label("Neighbor")
+	int neighbor;
+
+	@Label("Type")
+	String type;
+
+	@Label("Payload Size")
+	@DataAmount
+	int size;
+
+	// Records the message if a recording asks for it; next to free otherwise
+	static void commit(int neighbor, MessageType type, int size) {
+		MessageSentEvent event = new MessageSentEvent();
+		if (!event.isEnabled())
+			return;
+		event.neighbor = neighbor;
+		event.type = type.name();
+		event.size = size;
+		event.commit();
+	}
+}
@@ -0,0 +1,309 @@
+package Peer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import Messaging.FrameCodec;
+import Messaging.MessageType;
+
+/**
+ * Live numbers about a running peer. Connections and the disk record into
+ * striped counters and {@link LatencyHistogram}s, which takes no locks and
+ * allocates nothing, so metrics are always on; gauges are read from where the
+ * peer keeps its state anyway, only when somebody asks.
+ *
+ * Once started, everything is registered as MXBeans under the "P2P" domain
+ * and, if MetricsPort in Common.cfg is set, served as text in the Prometheus
+ * format at http://localhost:port/metrics. Every peer listens on MetricsPort
+ * plus its position in PeerInfo.cfg, so a whole swarm can run on one host.
+ * Peers of other swarms in the process at that position share the port, told
+ * apart by their swarm label.
+ */
+public class Metrics implements PeerMetricsMXBean {
+
+	private static final MessageType[] TYPES = MessageType.values();
+
+	private final Peer peer;
+	private final LongAdder[] received = new LongAdder[TYPES.length];
+	private final LongAdder[] sent = new LongAdder[TYPES.length];
+	private final LongAdder bytesReceived = new LongAdder(); // whole frames, length prefix included
+	private final LongAdder bytesSent = new LongAdder();
+	final LatencyHistogram requestLatency = new LatencyHistogram(); // over every neighbor
+	private final NeighborMetrics[] neighbors; // null at our own index
+
+	private final ArrayList<ObjectName> registered = new ArrayList<>();
+	private int metricsPort = 0; // of the HTTP endpoint serving us, if any
+
+	public Metrics(Peer peer, int numNeighbors, int ownIndex) {
+		this.peer = peer;
+		for (int i = 0; i < TYPES.length; i++) {
+			received[i] = new LongAdder();
+			sent[i] = new LongAdder();
+		}
+		neighbors = new NeighborMetrics[numNeighbors];
+		for (int i = 0; i < numNeighbors; i++)
+			if (i != ownIndex)
+				neighbors[i] = new NeighborMetrics(peer, i);
+	}
+
+	public NeighborMetrics neighbor(int neighborIndex) {
+		return neighbors[neighborIndex];
+	}
+
+	public void onReceived(MessageType type, int payloadLength) {
+		received[type.ordinal()].increment();
+		bytesReceived.add(FrameCodec.frameLength(payloadLength)); // the length prefix counts itself
+	}
+
+	public void onSent(MessageType type, int payloadLength) {
+		sent[type.ordinal()].increment();
+		bytesSent.add(FrameCodec.frameLength(payloadLength));
+	}
+
+	// Takes back a frame counted as sent but dropped before it went out, e.g. a PIECE queued for a choked neighbor
+	public void onUnsent(MessageType type, int payloadLength) {
+		sent[type.ordinal()].decrement();
+		bytesSent.add(-FrameCodec.frameLength(payloadLength));
+	}
+
+	/**
+	 * Registers the MXBeans and starts the HTTP endpoint if configured.
+	 * Failures are reported but don't keep the peer from running.
+	 */
+
+	public void start() {
+		// the same peer id can be in several swarms of the process
+		String peerKey = "P2P:swarm=" + ObjectName.quote(peer.config.getDirectory().getPath()) + ",peer=" + peer.peerId;
+		register(peerKey + ",type=Peer", this);
+		register(peerKey + ",type=Latency,name=request", requestLatency);
+		register(peerKey + ",type=Latency,name=diskRead", peer.fileHandler.getReadLatency());
+		register(peerKey + ",type=Latency,name=diskWrite", peer.fileHandler.getWriteLatency());
+		for (NeighborMetrics neighbor : neighbors) {
+			if (neighbor == null)
+				continue;
+			String neighborKey = peerKey + ",neighbor=" + neighbor.getNeighborId();
+			register(neighborKey + ",type=Neighbor", neighbor);
+			register(neighborKey + ",type=Latency,name=request", neighbor.requestLatency);
+		}
+
+		int port = peer.config.getPeerCommonProps().MetricsPort;
+		if (port <= 0)
+			return;
+		try {
+			peer.host.addMetrics(port + peer.peerIndex, this);
+			metricsPort = port + peer.peerIndex;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void register(String name, Object bean) {
+		try {
+			MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			beans.registerMBean(bean, objectName);
+			registered.add(objectName);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Stops the HTTP endpoint and unregisters the MXBeans
+	public void close() {
+		if (metricsPort > 0) {
+			peer.host.removeMetrics(metricsPort, this);
+			metricsPort = 0;
+		}
+		MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registered) {
+			try {
+				beans.unregisterMBean(name);
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+		}
+		registered.clear();
+	}
+
+	public int getPeerId() {
+		return peer.peerId;
+	}
+
+	public int getPiecesDownloaded() {
+		return peer.bitfield.getNumPiecesDowned();
+	}
+
+	public int getNumPieces() {
+		return peer.bitfield.getSize();
+	}
+
+	public double getCompletionPercent() {
+		return 100.0 * getPiecesDownloaded() / getNumPieces();
+	}
+
+	public double getSwarmCompletionPercent() {
+		long pieces = getPiecesDownloaded();
+		for (int i = 0; i < neighbors.length; i++)
+			if (neighbors[i] != null)
+				pieces += peer.config.getNeighborhoodInfo().get(i).bitfield.getNumPiecesDowned();
+		return 100.0 * pieces / ((long) neighbors.length * getNumPieces());
+	}
+
+	public int getFinishedPeers() {
+		return peer.swarm.getFinishedPeers();
+	}
+
+	public Map<String, Long> getMessagesReceived() {
+		return countsByType(received);
+	}
+
+	public Map<String, Long> getMessagesSent() {
+		return countsByType(sent);
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	private static Map<String, Long> countsByType(LongAdder[] counts) {
+		LinkedHashMap<String, Long> byType = new LinkedHashMap<>();
+		for (int i = 0; i < TYPES.length; i++)
+			byType.put(TYPES[i].name(), counts[i].sum());
+		return byType;
+	}
+
+	// Prometheus text of several peers, with each family's samples together under a single TYPE line
+	static String toText(List<Metrics> peers) {
+		LinkedHashMap<String, StringBuilder> families = new LinkedHashMap<>(); // TYPE line -> samples
+		for (Metrics metrics : peers) {
+			StringBuilder family = null;
+			for (String line : metrics.toText().split("\n")) {
+				if (line.startsWith("# TYPE "))
+					family = families.computeIfAbsent(line, type -> new StringBuilder());
+				else
+					family.append(line).append('\n');
+			}
+		}
+
+		StringBuilder s = new StringBuilder();
+		families.forEach((type, samples) -> s.append(type).append('\n').append(samples));
+		return s.toString();
+	}
+
+	// Everything in the Prometheus text format
+	public String toText() {
+		StringBuilder s = new StringBuilder();
+		// the same peer id can be in several swarms sharing the endpoint
+		String swarm = peer.config.getDirectory().getPath().replace("\\", "\\\\").replace("\"", "\\\"");
+		String self = "peer=\"" + peer.peerId + "\",swarm=\"" + swarm + "\"";
+
+		header(s, "p2p_pieces_downloaded", "gauge");
+		sample(s, "p2p_pieces_downloaded", self, getPiecesDownloaded());
+		header(s, "p2p_completion_percent", "gauge");
+		sample(s, "p2p_completion_percent", self, getCompletionPercent());
+		header(s, "p2p_swarm_completion_percent", "gauge");
+		sample(s, "p2p_swarm_completion_percent", self, getSwarmCompletionPercent());
+		header(s, "p2p_finished_peers", "gauge");
+		sample(s, "p2p_finished_peers", self, getFinishedPeers());
+
+		header(s, "p2p_messages_received_total", "counter");
+		for (int i = 0; i < TYPES.length; i++)
+			sample(s, "p2p_messages_received_total", self + ",type=\"" + TYPES[i] + "\"", received[i].sum());
+		header(s, "p2p_messages_sent_total", "counter");
+		for (int i = 0; i < TYPES.length; i++)
+			sample(s, "p2p_messages_sent_total", self + ",type=\"" + TYPES[i] + "\"", sent[i].sum());
+		header(s, "p2p_received_bytes_total", "counter");
+		sample(s, "p2p_received_bytes_total", self, getBytesReceived());
+		header(s, "p2p_sent_bytes_total", "counter");
+		sample(s, "p2p_sent_bytes_total", self, getBytesSent());
+
+		header(s, "p2p_neighbor_download_bytes_per_second", "gauge");
+		for (NeighborMetrics n : neighbors)
+			if (n != null)
+				sample(s, "p2p_neighbor_download_bytes_per_second", labels(self, n), n.getDownloadBytesPerSecond());
+		header(s, "p2p_neighbor_upload_bytes_per_second", "gauge");
+		for (NeighborMetrics n : neighbors)
+			if (n != null)
+				sample(s, "p2p_neighbor_upload_bytes_per_second", labels(self, n), n.getUploadBytesPerSecond());
+		header(s, "p2p_neighbor_downloaded_bytes_total", "counter");
+		for (NeighborMetrics n : neighbors)
+			if (n != null)
+				sample(s, "p2p_neighbor_downloaded_bytes_total", labels(self, n), n.getBytesDownloaded());
+		header(s, "p2p_neighbor_uploaded_bytes_total", "counter");
+		for (NeighborMetrics n : neighbors)
+			if (n != null)
+				sample(s, "p2p_neighbor_uploaded_bytes_total", labels(self, n), n.getBytesUploaded());
+		header(s, "p2p_neighbor_requests_in_flight", "gauge");
+		for (NeighborMetrics n : neighbors)
+			if (n != null)
+				sample(s, "p2p_neighbor_requests_in_flight", labels(self, n), n.getRequestsInFlight());
+		header(s, "p2p_neighbor_choked", "gauge");
+		for (NeighborMetrics n : neighbors)
+			if (n != null)
+				sample(s, "p2p_neighbor_choked", labels(self, n), n.isChoked() ? 1 : 0);
+		header(s, "p2p_neighbor_choking_us", "gauge");
+		for (NeighborMetrics n : neighbors)
+			if (n != null)
+				sample(s, "p2p_neighbor_choking_us", labels(self, n), n.isChokingUs() ? 1 : 0);
+
+		header(s, "p2p_request_latency_milliseconds", "summary");
+		latency(s, "p2p_request_latency_milliseconds", self, requestLatency);
+		for (NeighborMetrics n : neighbors)
+			if (n != null)
+				latency(s, "p2p_request_latency_milliseconds", labels(self, n), n.requestLatency);
+		header(s, "p2p_disk_read_latency_milliseconds", "summary");
+		latency(s, "p2p_disk_read_latency_milliseconds", self, peer.fileHandler.getReadLatency());
+		header(s, "p2p_disk_write_latency_milliseconds", "summary");
+		latency(s, "p2p_disk_write_latency_milliseconds", self, peer.fileHandler.getWriteLatency());
+
+		header(s, "p2p_piece_buffers_allocated_bytes", "counter");
+		sample(s, "p2p_piece_buffers_allocated_bytes", self, peer.buffers.getAllocatedBytes());
+		header(s, "p2p_heap_allocated_bytes", "counter");
+		sample(s, "p2p_heap_allocated_bytes", self, peer.allocations.getAllocatedBytes());
+		PieceCache cache = peer.fileHandler.getCache();
+		if (cache != null) {
+			header(s, "p2p_read_cache_hits_total", "counter");
+			sample(s, "p2p_read_cache_hits_total", self, cache.getHits());
+			header(s, "p2p_read_cache_misses_total", "counter");
+			sample(s, "p2p_read_cache_misses_total", self, cache.getMisses());
+		}
+		return s.toString();
+	}
+
+	private static String labels(String self, NeighborMetrics neighbor) {
+		return self + ",neighbor=\"" + neighbor.getNeighborId() + "\"";
+	}
+
+	private static void header(StringBuilder s, String name, String type) {
+		s.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder s, String name, String labels, double value) {
+		s.append(name).append('{').append(labels).append("} ");
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			s.append((long) value);
+		else
+			s.append(value);
+		s.append('\n');
+	}
+
+	private static void latency(StringBuilder s, String name, String labels, LatencyHistogram histogram) {
+		for (double quantile : new double[] { 0.5, 0.9, 0.99 })
+			sample(s, name, labels + ",quantile=\"" + quantile + "\"", histogram.getPercentileMillis(quantile));
+		sample(s, name + "_sum", labels, histogram.getTotalMillis());
+		sample(s, name + "_count", labels, histogram.getCount());
+	}
+}
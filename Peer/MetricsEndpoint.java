@@ -0,0 +1,53 @@
+package Peer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP server for /metrics on one loopback port, shared by the peers of the
+ * process configured to use it, e.g. the peer at the same position of every
+ * swarm a {@link SwarmHost} runs. Owned by the host, which stops it once the
+ * last of them is gone.
+ */
+class MetricsEndpoint {
+
+	private final HttpServer server;
+	private final List<Metrics> peers = new CopyOnWriteArrayList<>();
+
+	public MetricsEndpoint(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", this::serve);
+		server.start();
+	}
+
+	public void add(Metrics metrics) {
+		peers.add(metrics);
+	}
+
+	// @return Whether no peer uses the endpoint any more
+	public boolean remove(Metrics metrics) {
+		peers.remove(metrics);
+		return peers.isEmpty();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		byte[] body = Metrics.toText(peers).getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+}
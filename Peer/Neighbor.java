@@ -9,20 +9,22 @@ public class Neighbor {
     public final Integer ID;
     public final String hostname;
     public final Integer port;
-    public final Bitfield bitfield = new Bitfield();
+    public final Bitfield bitfield;
     public Boolean isChoked = true;
-    public Long bytesTransferedToPeer = 0L;
+    public final TransferRate downloadRate = new TransferRate(); // from the neighbor to us
+    public final TransferRate uploadRate = new TransferRate(); // from us to the neighbor
 
-    public Neighbor(Integer id, String hostname, Integer port, Boolean hasFile) {
+    public Neighbor(Integer id, String hostname, Integer port, Boolean hasFile, int numPieces) {
         this.ID = id;
         this.hostname = hostname;
         this.port = port;
+        this.bitfield = new Bitfield(numPieces);
 
         if (hasFile)
             this.bitfield.turnOnAll();
     }
 
-    public static Vector<Neighbor> LoadNeighborData(String filepath) {
+    public static Vector<Neighbor> LoadNeighborData(String filepath, int numPieces) {
         try {
             Vector<Neighbor> neighbors = new Vector<>();
 
@@ -41,7 +43,7 @@ public class Neighbor {
 
                 try {
                     Neighbor newPeer = new Neighbor(Integer.parseInt(data[0]), data[1], Integer.parseInt(data[2]),
-                            data[3].equals("1"));
+                            data[3].equals("1"), numPieces);
                     neighbors.add(newPeer);
                 } catch (NumberFormatException e) {
                     System.out.println(String.format("Could not parse line \"%s\" due to NumberFormatException", line));
@@ -0,0 +1,66 @@
+package Peer;
+
+/**
+ * What a running peer knows about its transfer with one neighbor. Rates and
+ * choke state are read from where the peer keeps them anyway; the neighbor's
+ * connection publishes the rest as it changes.
+ */
+class NeighborMetrics implements NeighborMetricsMXBean {
+
+	private final Peer peer;
+	private final int neighborIndex;
+	final LatencyHistogram requestLatency = new LatencyHistogram(); // from sending a request to its data arriving
+
+	volatile int requestsInFlight = 0;
+	volatile boolean chokingUs = true;
+
+	public NeighborMetrics(Peer peer, int neighborIndex) {
+		this.peer = peer;
+		this.neighborIndex = neighborIndex;
+	}
+
+	private Neighbor getNeighbor() {
+		return peer.config.getNeighborhoodInfo().get(neighborIndex);
+	}
+
+	public void onRequestCompleted(long nanos) {
+		requestLatency.record(nanos);
+		peer.metrics.requestLatency.record(nanos);
+	}
+
+	public int getNeighborId() {
+		return getNeighbor().ID;
+	}
+
+	public double getDownloadBytesPerSecond() {
+		return getNeighbor().downloadRate.getRate();
+	}
+
+	public double getUploadBytesPerSecond() {
+		return getNeighbor().uploadRate.getRate();
+	}
+
+	public long getBytesDownloaded() {
+		return getNeighbor().downloadRate.getTotalBytes();
+	}
+
+	public long getBytesUploaded() {
+		return getNeighbor().uploadRate.getTotalBytes();
+	}
+
+	public int getRequestsInFlight() {
+		return requestsInFlight;
+	}
+
+	public boolean isChoked() {
+		return getNeighbor().isChoked;
+	}
+
+	public boolean isChokingUs() {
+		return chokingUs;
+	}
+
+	public boolean isInterested() {
+		return peer.interestedNeighbors.get(neighborIndex);
+	}
+}
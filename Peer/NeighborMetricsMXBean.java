@@ -0,0 +1,25 @@
+package Peer;
+
+/**
+ * JMX view of the transfer with one neighbor.
+ */
+public interface NeighborMetricsMXBean {
+
+	int getNeighborId();
+
+	double getDownloadBytesPerSecond();
+
+	double getUploadBytesPerSecond();
+
+	long getBytesDownloaded();
+
+	long getBytesUploaded();
+
+	int getRequestsInFlight();
+
+	boolean isChoked(); // by us
+
+	boolean isChokingUs();
+
+	boolean isInterested(); // in our pieces
+}
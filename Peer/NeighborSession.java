@@ -0,0 +1,591 @@
+package Peer;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import Messaging.FrameHandler;
+import Messaging.FrameWriter;
+import Messaging.Message;
+import Messaging.MessageType;
+import Peer.Peer.ChokingUpdate;
+
+/**
+ * Protocol state for a single neighbor connection, independent of how the bytes
+ * get on and off the wire. Runners feed it decoded frames and periodically
+ * call {@link #lifetimeChecks()}; everything it wants to send goes through the
+ * {@link FrameWriter} it was created with.
+ */
+class NeighborSession implements FrameHandler {
+
+	private final Peer peer;
+	private final int neighborIndex;
+	private final int neighborId;
+	private final FrameWriter outbound;
+
+	private int announceCursor = 0; // position in the peer's completion log announced up to
+	private final RequestPipeline pipeline;
+	private final NeighborMetrics metrics;
+	private boolean chokedByNeighbor = true;
+	private boolean countedAvailability = false; // neighbor's pieces are included in the picker's counts
+	private int seenCorrupt = 0; // picker's corrupt piece count when we last filled the pipeline
+
+	private final ArrayDeque<int[]> pendingUploads = new ArrayDeque<>(); // {piece, offset, length} requested, not sent yet
+	private boolean requestsThrottled = false; // stopped requesting because of the download limit or disk
+	private final AtomicBoolean wakeupScheduled = new AtomicBoolean(false);
+	private Runnable wakeup = () -> {}; // polling runners call lifetimeChecks often enough without one
+
+	private boolean chokingTimeout;
+	private boolean optimisticUnchokeTimeout;
+
+	private RunnerState state = RunnerState.HANDSHAKE;
+	private final HandshakeEvent handshake = new HandshakeEvent();
+
+	public NeighborSession(Peer peer, int neighborIndex, FrameWriter outbound) {
+		this.peer = peer;
+		this.neighborIndex = neighborIndex;
+		this.neighborId = getNeighbor().ID;
+		handshake.begin();
+		this.outbound = outbound;
+		this.metrics = peer.metrics.neighbor(neighborIndex);
+		var props = peer.config.getPeerCommonProps();
+		this.pipeline = new RequestPipeline(peer.assembler != null ? peer.assembler.getBlockSize() : props.PieceSize,
+				props.OutstandingRequests, metrics);
+
+		// start timeouts in opposite state
+		this.chokingTimeout = !this.peer.chokingTimeout;
+		this.optimisticUnchokeTimeout = !this.peer.optimisticUnchokeTimeout;
+	}
+
+	// How the runner gets lifetimeChecks called soon, e.g. once a rate limit lets bytes through
+	public void setWakeup(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	private void scheduleWakeup(long nanos) {
+		if (wakeupScheduled.compareAndSet(false, true)) {
+			peer.host.getScheduler().schedule(() -> {
+				wakeupScheduled.set(false);
+				wakeup.run();
+			}, nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	// Takes download tokens for a request, or arranges to try again once they are available
+	private boolean acquireDownload(int bytes) {
+		if (peer.fileHandler.isBacklogged()) { // woken through the state listeners once it drains
+			requestsThrottled = true;
+			return false;
+		}
+
+		long wait = peer.limits.acquireDownload(neighborIndex, bytes);
+		if (wait == 0)
+			return true;
+		requestsThrottled = true;
+		scheduleWakeup(wait);
+		return false;
+	}
+
+	private void setChokedByNeighbor(boolean choked) {
+		chokedByNeighbor = choked;
+		metrics.chokingUs = choked;
+	}
+
+	public Neighbor getNeighbor() {
+		return peer.config.getNeighborhoodInfo().get(neighborIndex);
+	}
+
+	public boolean isHandshaking() {
+		return state == RunnerState.HANDSHAKE;
+	}
+
+	private void send(MessageType type) {
+		try {
+			outbound.write(type);
+			peer.metrics.onSent(type, 0);
+			MessageSentEvent.commit(neighborId, type, 0);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void send(MessageType type, int index) {
+		try {
+			outbound.write(type, index);
+			peer.metrics.onSent(type, 4);
+			MessageSentEvent.commit(neighborId, type, 4);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void send(MessageType type, int index, int offset, int length) {
+		try {
+			outbound.write(type, index, offset, length);
+			peer.metrics.onSent(type, 12);
+			MessageSentEvent.commit(neighborId, type, 12);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void send(MessageType type, byte[] payload) {
+		try {
+			outbound.write(type, payload);
+			peer.metrics.onSent(type, payload.length);
+			MessageSentEvent.commit(neighborId, type, payload.length);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Keeps the request window full while the neighbor lets us download
+	private void fillPipeline() {
+		if (peer.assembler != null) {
+			fillBlockPipeline();
+			return;
+		}
+
+		var neighbor = getNeighbor();
+		while (!chokedByNeighbor && pipeline.hasCapacity()) {
+			int missingPiece = getMissingPieceIndex();
+			if (missingPiece == -1) // everything requested, duplicate the remaining ones not yet received
+				missingPiece = peer.picker.pickEndgame(neighbor.bitfield, neighborIndex,
+						pieceIndex -> pipeline.isRequested(pieceIndex) || peer.verifying.contains(pieceIndex));
+			if (missingPiece == -1) // no interesting piece, skip request
+				return;
+			if (!acquireDownload(peer.fileHandler.getPieceLength(missingPiece)))
+				return;
+
+			send(MessageType.REQUEST, missingPiece);
+			PieceRequestEvent.commit(neighborId, missingPiece, 0, peer.fileHandler.getPieceLength(missingPiece),
+					peer.picker.isEndgame());
+			peer.picker.markRequested(missingPiece);
+			pipeline.onRequested(missingPiece, System.nanoTime());
+		}
+	}
+
+	// Block mode: finish pieces already in progress before starting new ones
+	private void fillBlockPipeline() {
+		var assembler = peer.assembler;
+		var neighbor = getNeighbor();
+
+		while (!chokedByNeighbor && pipeline.hasCapacity()) {
+			int blockId = assembler.nextBlock(neighbor.bitfield);
+			while (blockId == -1) {
+				int missingPiece = getMissingPieceIndex();
+				if (missingPiece == -1) {
+					if (peer.picker.isEndgame())
+						blockId = assembler.endgameBlock(neighbor.bitfield, pipeline::isRequested);
+					if (blockId == -1) // no interesting piece, skip request
+						return;
+					break;
+				}
+				peer.picker.markRequested(missingPiece);
+				blockId = assembler.startPiece(missingPiece);
+			}
+			if (!acquireDownload(assembler.lengthOf(blockId))) {
+				assembler.release(blockId);
+				return;
+			}
+
+			send(MessageType.REQUEST, assembler.pieceOf(blockId), assembler.offsetOf(blockId),
+					assembler.lengthOf(blockId));
+			PieceRequestEvent.commit(neighborId, assembler.pieceOf(blockId), assembler.offsetOf(blockId),
+					assembler.lengthOf(blockId), peer.picker.isEndgame());
+			pipeline.onRequested(blockId, System.nanoTime());
+		}
+	}
+
+	// Hands requests back so other neighbors can pick them up
+	private void releaseRequests(Integer[] requestIds) {
+		for (int requestId : requestIds) {
+			if (peer.assembler != null)
+				peer.assembler.release(requestId); // the piece stays in progress
+			else
+				peer.picker.release(requestId);
+		}
+	}
+
+	private boolean isStillNeeded(int requestId) {
+		if (peer.assembler != null)
+			return peer.assembler.isNeeded(requestId);
+		return !peer.hasPiece(requestId);
+	}
+
+	private void sendCancel(int requestId) {
+		if (peer.assembler != null)
+			send(MessageType.CANCEL, peer.assembler.pieceOf(requestId), peer.assembler.offsetOf(requestId),
+					peer.assembler.lengthOf(requestId));
+		else
+			send(MessageType.CANCEL, requestId);
+	}
+
+	// Retracts requests whose data already came from another neighbor (endgame)
+	private void cancelDelivered() {
+		Integer[] delivered = pipeline.cancelIf(requestId -> !isStillNeeded(requestId));
+		for (int requestId : delivered)
+			sendCancel(requestId);
+		if (delivered.length > 0)
+			fillPipeline();
+	}
+
+	/**
+	 * Sends the oldest pending request, once the upload limit lets it through.
+	 * Runners call this from the thread that writes to the connection, outside
+	 * of onFrame and without the session lock: the write lasts until the
+	 * neighbor reads it, and a neighbor busy sending to us only reads once we
+	 * read too.
+	 *
+	 * @return False if nothing was sent.
+	 */
+
+	public boolean serveUpload() throws IOException {
+		int[] request = nextUpload();
+		if (request == null)
+			return false;
+		serve(request[0], request[1], request[2]);
+		return true;
+	}
+
+	private synchronized int[] nextUpload() {
+		int[] request = pendingUploads.peek();
+		if (request == null)
+			return null;
+		long wait = peer.limits.acquireUpload(neighborIndex, request[2]);
+		if (wait > 0) {
+			scheduleWakeup(wait);
+			return null;
+		}
+		return pendingUploads.poll();
+	}
+
+	private void serve(int pieceIndex, int offset, int length) throws IOException {
+		if (peer.assembler != null) {
+			outbound.write(MessageType.PIECE, pieceIndex, offset,
+					peer.fileHandler.blockRegion(pieceIndex, offset, length));
+		} else {
+			// header first, then the piece goes from the file to the socket without copies
+			outbound.write(MessageType.PIECE, pieceIndex, peer.fileHandler.pieceRegion(pieceIndex));
+		}
+		int payloadLength = (peer.assembler != null ? 8 : 4) + length;
+		peer.metrics.onSent(MessageType.PIECE, payloadLength);
+		MessageSentEvent.commit(neighborId, MessageType.PIECE, payloadLength);
+		getNeighbor().uploadRate.add(length);
+	}
+
+	// Called by the runner once the connection is gone
+	public synchronized void onClose() {
+		if (state == RunnerState.HANDSHAKE)
+			handshake.record(neighborId, false);
+		pendingUploads.clear();
+		setChokedByNeighbor(true);
+		releaseRequests(pipeline.cancelAll());
+		if (countedAvailability)
+			peer.picker.removeBitfield(getNeighbor().bitfield);
+		countedAvailability = false;
+	}
+
+	// Sends our bitfield and switches over to exchanging regular messages
+	public synchronized void onHandshakeComplete() {
+		handshake.record(neighborId, true);
+		if (peer.logger.isDebugEnabled())
+			peer.logger.DebugLog("Handshake succeeded with Peer " + getNeighbor().ID + ". Started exchanging messages");
+
+		// taken before encoding, so a piece completing meanwhile is announced twice rather than never
+		announceCursor = peer.completions.size();
+		send(MessageType.BITFIELD, peer.bitfield.encode());
+
+		state = RunnerState.RECEIVE_MESSAGE;
+	}
+
+	// Runs checks for have, choke, unchoke related to timeout events
+	public synchronized void lifetimeChecks() {
+		if (state == RunnerState.HANDSHAKE)
+			return;
+
+		// check timeout events
+		boolean chokingUpdate = this.chokingTimeout == this.peer.chokingTimeout;
+		boolean optimisticUnchokeUpdate = this.optimisticUnchokeTimeout == this.peer.optimisticUnchokeTimeout;
+
+		// flip bits if there's an update to indicate that it's been resolved
+		this.chokingTimeout = chokingUpdate ? !chokingTimeout : chokingTimeout;
+		this.optimisticUnchokeTimeout = optimisticUnchokeUpdate ? !optimisticUnchokeTimeout : optimisticUnchokeTimeout;
+
+		var neighbor = getNeighbor();
+
+		if (chokingUpdate || optimisticUnchokeUpdate) {
+			if (peer.neighborsChokingUpdates.get(neighborIndex) == ChokingUpdate.SHOULD_BE_CHOKED) {
+				pendingUploads.clear(); // a choked neighbor expects its requests to be dropped
+				send(MessageType.CHOKE);
+				if (peer.logger.isDebugEnabled())
+					peer.logger.DebugLog("Sent CHOKE to Peer " + neighbor.ID);
+			} else if (peer.neighborsChokingUpdates.get(neighborIndex) == ChokingUpdate.SHOULD_BE_UNCHOKED) {
+				send(MessageType.UNCHOKE);
+				if (peer.logger.isDebugEnabled())
+					peer.logger.DebugLog("Sent UNCHOKE to Peer " + neighbor.ID);
+			}
+			peer.neighborsChokingUpdates.set(neighborIndex, ChokingUpdate.NO_ACTION);
+		}
+
+		if (chokingUpdate) {
+			// requests unanswered for a whole unchoking interval, while nothing else arrived either, are
+			// presumed lost; cancelled all the same in case the neighbor is merely slow
+			long interval = peer.config.getPeerCommonProps().UnchokingInterval * 1_000_000_000L;
+			Integer[] stale = pipeline.cancelStalled(System.nanoTime() - interval);
+			for (int requestId : stale)
+				sendCancel(requestId);
+			releaseRequests(stale);
+			if (stale.length > 0)
+				fillPipeline();
+		}
+		cancelDelivered();
+
+		if (seenCorrupt != peer.picker.getNumCorrupt()) { // a piece needs downloading again
+			seenCorrupt = peer.picker.getNumCorrupt();
+			fillPipeline();
+		}
+
+		if (requestsThrottled) {
+			requestsThrottled = false;
+			fillPipeline();
+		}
+
+		// announce pieces completed since the last check
+		for (int end = peer.completions.size(); announceCursor < end; announceCursor++) {
+			int i = peer.completions.get(announceCursor);
+			if (peer.logger.isDebugEnabled())
+				peer.logger.DebugLog("Announcing 'HAVE' " + i + " to Peer " + neighbor.ID);
+			send(MessageType.HAVE, i);
+		}
+	}
+
+	public synchronized void onFrame(MessageType type, ByteBuffer payload) throws IOException {
+		peer.metrics.onReceived(type, payload.remaining());
+		MessageReceivedEvent.commit(neighborId, type, payload.remaining());
+		var neighbor = getNeighbor();
+		switch (type) {
+			case CHOKE:
+				peer.logger.ChokingLog(neighbor.ID);
+				setChokedByNeighbor(true);
+				releaseRequests(pipeline.cancelAll()); // the neighbor drops requests while we're choked
+				break;
+			case UNCHOKE:
+				peer.logger.UnchokingLog(neighbor.ID);
+				setChokedByNeighbor(false);
+				fillPipeline();
+				break;
+			case INTERESTED:
+				peer.logger.InterestedLog(neighbor.ID);
+				peer.interestedNeighbors.set(neighborIndex, true);
+				break;
+			case NOTINTERESTED:
+				peer.logger.NotInterestedLog(neighbor.ID);
+				peer.interestedNeighbors.set(neighborIndex, false);
+				break;
+			case HAVE:
+				int pieceIndex = checkPieceIndex(type, payload.getInt());
+				if (!countedAvailability) { // HAVE before any BITFIELD
+					neighbor.bitfield.turnOnBit(pieceIndex);
+					peer.picker.addBitfield(neighbor.bitfield);
+					countedAvailability = true;
+				} else if (!neighbor.bitfield.getBit(pieceIndex)) {
+					neighbor.bitfield.turnOnBit(pieceIndex);
+					peer.picker.addPiece(pieceIndex);
+				}
+
+				peer.logger.HaveMessageLog(neighbor.ID, pieceIndex);
+				if (peer.bitfield.getInterestingIndex(neighbor.bitfield) != -1) {
+					send(MessageType.INTERESTED);
+					fillPipeline();
+				} else {
+					send(MessageType.NOTINTERESTED);
+				}
+				break;
+			case BITFIELD:
+				if (countedAvailability)
+					peer.picker.removeBitfield(neighbor.bitfield);
+				neighbor.bitfield.setBitField(payload);
+				peer.picker.addBitfield(neighbor.bitfield);
+				countedAvailability = true;
+				boolean hasSomeMissingPiece = peer.bitfield.getInterestingIndex(neighbor.bitfield) != -1;
+
+				send(hasSomeMissingPiece ? MessageType.INTERESTED : MessageType.NOTINTERESTED);
+
+				if (peer.logger.isDebugEnabled()) {
+					peer.logger.DebugLog("Peer " + neighbor.ID + " sent BITFIELD " + neighbor.bitfield.getText());
+					peer.logger.DebugLog("Sent " + (hasSomeMissingPiece ? "INTERESTED" : "NOT_INTERESTED")
+							+ " to Peer " + neighbor.ID);
+				}
+				break;
+			case REQUEST:
+				if (neighbor.isChoked) {
+					if (peer.logger.isDebugEnabled())
+						peer.logger.DebugLog("Received request from " + neighbor.ID + " but it is choked");
+					break;
+				}
+
+				int requestedPieceIndex = checkPieceIndex(type, payload.getInt());
+				if (!peer.hasPiece(requestedPieceIndex)) {
+					if (peer.logger.isDebugEnabled())
+						peer.logger.DebugLog("Received request for a piece that I do not have from " + neighbor.ID);
+					break;
+				}
+
+				if (peer.assembler != null) {
+					queueBlock(requestedPieceIndex, payload.getInt(), payload.getInt());
+					break;
+				}
+				pendingUploads.add(
+						new int[] { requestedPieceIndex, 0, peer.fileHandler.getPieceLength(requestedPieceIndex) });
+				break;
+			case CANCEL:
+				// only requests not being sent yet are still ours to drop
+				if (peer.logger.isDebugEnabled())
+					peer.logger.DebugLog("Peer " + neighbor.ID + " cancelled " + Message.describe(type, payload));
+				int cancelledPiece = payload.getInt();
+				int cancelledOffset = payload.remaining() >= 4 ? payload.getInt() : 0;
+				pendingUploads.removeIf(request -> request[0] == cancelledPiece && request[1] == cancelledOffset);
+				break;
+			case PIECE:
+				if (peer.logger.isDebugEnabled())
+					peer.logger.DebugLog(Message.describe(type, payload));
+				if (peer.assembler != null) {
+					receiveBlock(payload);
+					break;
+				}
+
+				int receivedPiece = checkPieceIndex(type, payload.getInt(payload.position()));
+				int receivedLength = payload.remaining() - 4;
+				neighbor.downloadRate.add(receivedLength);
+				// endgame duplicates aren't even copied, whether they arrive late or while a copy is being checked
+				if (!peer.hasPiece(receivedPiece) && peer.verifying.add(receivedPiece)) {
+					peer.picker.noteSource(receivedPiece, neighborIndex);
+					verifyAndComplete(Piece.decodePieceMessagePayload(payload, peer.buffers));
+				}
+
+				pipeline.onReceived(receivedPiece, receivedLength, System.nanoTime());
+				fillPipeline();
+				break;
+		}
+	}
+
+	// Rejects a piece index from the wire that is outside the file, which closes the connection
+	private int checkPieceIndex(MessageType type, int pieceIndex) throws ProtocolException {
+		if (pieceIndex < 0 || pieceIndex >= peer.bitfield.getSize())
+			throw new ProtocolException("Peer " + neighborId + " sent " + type + " for piece " + pieceIndex + " of "
+					+ peer.bitfield.getSize());
+		return pieceIndex;
+	}
+
+	private void queueBlock(int pieceIndex, int offset, int length) {
+		int pieceLength = peer.fileHandler.getPieceLength(pieceIndex);
+		if (offset < 0 || length <= 0 || length > peer.assembler.getBlockSize() || offset > pieceLength - length) {
+			if (peer.logger.isDebugEnabled())
+				peer.logger.DebugLog("Received invalid block request from " + getNeighbor().ID);
+			return;
+		}
+
+		pendingUploads.add(new int[] { pieceIndex, offset, length });
+	}
+
+	private void receiveBlock(ByteBuffer payload) throws IOException {
+		int pieceIndex = checkPieceIndex(MessageType.PIECE, payload.getInt());
+		int offset = payload.getInt();
+		int length = payload.remaining();
+
+		getNeighbor().downloadRate.add(length);
+		pipeline.onReceived(peer.assembler.blockIdOf(pieceIndex, offset), length, System.nanoTime());
+		peer.picker.noteSource(pieceIndex, neighborIndex);
+
+		Piece completed = peer.assembler.receive(pieceIndex, offset, payload);
+		if (completed != null && peer.verifying.add(pieceIndex))
+			verifyAndComplete(completed);
+		else if (completed != null)
+			completed.release();
+
+		fillPipeline();
+	}
+
+	/**
+	 * Hashes the piece on the common pool so this connection keeps reading
+	 * meanwhile. Takes over the caller's reference to the piece, and its entry
+	 * in the peer's verifying set.
+	 */
+
+	private void verifyAndComplete(Piece piece) throws IOException {
+		if (!peer.hashes.isAvailable()) { // no metadata yet, nothing to check against
+			PieceCompleteEvent event = new PieceCompleteEvent();
+			event.begin();
+			try {
+				event.record(neighborId, piece, onPieceComplete(piece) ? "stored" : "duplicate");
+			} finally {
+				peer.verifying.remove(piece.getWhichPiece());
+				piece.release();
+			}
+			return;
+		}
+
+		ForkJoinPool.commonPool().execute(() -> {
+			PieceCompleteEvent event = new PieceCompleteEvent();
+			event.begin();
+			try {
+				if (peer.hashes.verify(piece)) {
+					event.record(neighborId, piece, onPieceComplete(piece) ? "stored" : "duplicate");
+					return;
+				}
+				event.record(neighborId, piece, "corrupt");
+				if (peer.logger.isDebugEnabled())
+					peer.logger.DebugLog("Piece " + piece.getWhichPiece() + " from Peer " + neighborId
+							+ " failed verification, requesting it again");
+				peer.picker.onCorrupt(piece.getWhichPiece());
+				peer.notifyStateListeners(); // idle connections can request it now
+			} catch (IOException | RuntimeException e) {
+				// the pool would swallow it, and the piece is never asked for again unless released
+				e.printStackTrace();
+				if (!peer.hasPiece(piece.getWhichPiece())) {
+					peer.picker.release(piece.getWhichPiece());
+					peer.notifyStateListeners();
+				}
+			} finally {
+				peer.verifying.remove(piece.getWhichPiece()); // the bit is set by now, unless it was corrupt
+				piece.release(); // the disk writer holds its own reference while the piece is queued
+			}
+		});
+	}
+
+	/**
+	 * Stores a verified piece and lets every connection announce it.
+	 *
+	 * @return False if we already had the piece.
+	 */
+
+	private boolean onPieceComplete(Piece piece) throws IOException {
+		if (peer.hasPiece(piece.getWhichPiece()))
+			return false; // don't queue a duplicate write
+		peer.fileHandler.writePiece(piece); // readable from here on, even if still queued
+
+		boolean wasFinished = peer.bitfield.isFinished();
+		if (!peer.bitfield.turnOnBit(piece.getWhichPiece()))
+			return false; // another neighbor delivered it first
+		peer.picker.onPieceComplete(piece.getWhichPiece());
+		peer.completions.append(piece.getWhichPiece());
+		peer.logger.DownloadLog(getNeighbor().ID, piece.getWhichPiece(), peer.bitfield.getNumPiecesDowned());
+
+		if (!wasFinished && peer.bitfield.isFinished()) {
+			peer.logger.CompleteDownloadLog();
+			peer.fileHandler.sync();
+		}
+
+		peer.notifyStateListeners(); // other connections have a new piece to announce
+		return true;
+	}
+
+	public synchronized int getMissingPieceIndex() {
+		return peer.picker.pick(getNeighbor().bitfield, neighborIndex);
+	}
+}
@@ -0,0 +1,351 @@
+package Peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import Messaging.FileRegion;
+import Messaging.FrameCodec;
+import Messaging.FrameDecoder;
+import Messaging.FrameWriter;
+import Messaging.HandshakeMessage;
+import Messaging.MessageType;
+
+/**
+ * Non-blocking counterpart of {@link PeerProcessRunner}. Owned by a single
+ * {@link EventLoop}; all of its methods are only ever called on that loop's
+ * thread, so the buffers and write queue need no locking.
+ *
+ * Outgoing frames are encoded into one reusable write buffer. Only frame bodies
+ * (piece data), PIECE frames and frames sent while the socket is backed up go
+ * through the write queue, which is always drained after the write buffer.
+ */
+class NioConnection implements FrameWriter {
+
+	// Something waiting in the write queue; drain returns true once fully written
+	private interface PendingWrite {
+		boolean drain(SocketChannel channel) throws IOException;
+
+		default void release() {
+		}
+	}
+
+	private static class BufferWrite implements PendingWrite {
+		final ByteBuffer buffer;
+
+		BufferWrite(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public boolean drain(SocketChannel channel) throws IOException {
+			channel.write(buffer);
+			return !buffer.hasRemaining();
+		}
+	}
+
+	// A PIECE frame, kept whole so it can still be dropped until its first byte is out
+	private static class RegionWrite implements PendingWrite {
+		final ByteBuffer header;
+		final FileRegion region;
+		long position = 0;
+		boolean released = false;
+
+		RegionWrite(ByteBuffer header, FileRegion region) {
+			this.header = header;
+			this.region = region;
+		}
+
+		boolean isStarted() {
+			return header.position() > 0;
+		}
+
+		public boolean drain(SocketChannel channel) throws IOException {
+			if (header.hasRemaining()) {
+				channel.write(header);
+				if (header.hasRemaining())
+					return false;
+			}
+			while (position < region.length()) {
+				long transferred = region.transferTo(position, channel);
+				if (transferred == 0) // socket full; a region past the end of its file throws instead
+					return false;
+				position += transferred;
+			}
+			release();
+			return true;
+		}
+
+		public void release() {
+			if (!released)
+				region.release();
+			released = true;
+		}
+	}
+
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_QUEUED_PIECE_BYTES = 512 * 1024; // requests beyond it wait in the session
+
+	private final Peer peer;
+	private final SocketChannel channel;
+	private final NeighborSession session;
+	private final Runnable onClosed;
+
+	private final FrameDecoder decoder = new FrameDecoder();
+	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE); // in write mode
+	private final ArrayDeque<PendingWrite> writeQueue = new ArrayDeque<>();
+	private long queuedPieceBytes = 0; // regions in the write queue not fully sent yet
+	private SelectionKey key;
+	private boolean closed = false;
+
+	public NioConnection(Peer peer, int neighborIndex, SocketChannel channel, Runnable onClosed) {
+		this.peer = peer;
+		this.channel = channel;
+		this.session = new NeighborSession(peer, neighborIndex, this);
+		this.onClosed = onClosed;
+	}
+
+	public Peer getPeer() {
+		return peer;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public void register(EventLoop loop, Selector selector) throws IOException {
+		session.setWakeup(() -> loop.execute(this::onStateChange));
+		channel.configureBlocking(false);
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+
+		HandshakeMessage.encode(reserve(HandshakeMessage.LENGTH), peer.peerId);
+		flush();
+	}
+
+	public void onReadable() throws IOException {
+		int read = channel.read(decoder.buffer());
+		if (read < 0) {
+			if (peer.logger.isDebugEnabled())
+				peer.logger.DebugLog("Peer " + session.getNeighbor().ID + " closed the connection");
+			close();
+			return;
+		}
+
+		if (session.isHandshaking() && !completeHandshake())
+			return;
+
+		decoder.decodeFrames(session);
+
+		if (!closed)
+			session.lifetimeChecks();
+		serveUploads();
+	}
+
+	private boolean completeHandshake() {
+		try {
+			int peerId = decoder.decodeHandshake();
+			if (peerId == -1)
+				return false;
+
+			if (peerId != session.getNeighbor().ID) {
+				peer.logger.DebugLog(
+						"Failed handshake: expected Peer " + session.getNeighbor().ID + ", got " + peerId);
+				close();
+				return false;
+			}
+		} catch (IllegalArgumentException e) {
+			peer.logger.DebugLog("Failed handshake: illegal header from Peer " + session.getNeighbor().ID);
+			close();
+			return false;
+		}
+
+		session.onHandshakeComplete();
+		return true;
+	}
+
+	public void onWritable() throws IOException {
+		flush();
+		serveUploads();
+	}
+
+	// Runs choke/unchoke, HAVE and exit checks in response to a peer state change
+	public void onStateChange() {
+		if (closed)
+			return;
+		session.lifetimeChecks();
+		try {
+			serveUploads(); // the upload limit may have let requests through
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Queues the pieces the neighbor asked for, as far as the write queue takes them; the rest are served
+	// once it drains, and stay cancellable until then
+	private void serveUploads() throws IOException {
+		while (!closed && queuedPieceBytes < MAX_QUEUED_PIECE_BYTES && session.serveUpload()) {
+			// one request per call
+		}
+	}
+
+	// Buffer to encode the next frame into, in write mode
+	private ByteBuffer reserve(int length) {
+		if (writeQueue.isEmpty() && writeBuffer.remaining() >= length)
+			return writeBuffer;
+
+		// backed up: keep ordering by queueing behind what's already waiting
+		ByteBuffer overflow = ByteBuffer.allocate(length);
+		writeQueue.add(new BufferWrite(overflow));
+		return overflow;
+	}
+
+	// Flips the frame just encoded if it went to the write queue
+	private void commit(ByteBuffer encoded) throws IOException {
+		if (encoded != writeBuffer)
+			encoded.flip();
+		flush();
+	}
+
+	public void write(MessageType type) throws IOException {
+		if (closed)
+			return;
+		if (type == MessageType.CHOKE)
+			dropUnsentPieces();
+		ByteBuffer out = reserve(FrameCodec.HEADER_LENGTH);
+		FrameCodec.encode(out, type);
+		commit(out);
+	}
+
+	public void write(MessageType type, int index) throws IOException {
+		if (closed)
+			return;
+		ByteBuffer out = reserve(FrameCodec.frameLength(4));
+		FrameCodec.encode(out, type, index);
+		commit(out);
+	}
+
+	public void write(MessageType type, int index, int offset, int length) throws IOException {
+		if (closed)
+			return;
+		ByteBuffer out = reserve(FrameCodec.frameLength(12));
+		FrameCodec.encode(out, type, index, offset, length);
+		commit(out);
+	}
+
+	public void write(MessageType type, byte[] payload) throws IOException {
+		if (closed)
+			return;
+		ByteBuffer out = reserve(FrameCodec.HEADER_LENGTH);
+		FrameCodec.encodeHeader(out, type, payload.length);
+		if (out != writeBuffer)
+			out.flip();
+		writeQueue.add(new BufferWrite(ByteBuffer.wrap(payload)));
+		flush();
+	}
+
+	public void write(MessageType type, int index, byte[] data) throws IOException {
+		if (closed)
+			return;
+		ByteBuffer out = reserve(FrameCodec.frameLength(4));
+		FrameCodec.encodeHeader(out, type, 4 + data.length);
+		out.putInt(index);
+		if (out != writeBuffer)
+			out.flip();
+		writeQueue.add(new BufferWrite(ByteBuffer.wrap(data)));
+		flush();
+	}
+
+	public void write(MessageType type, int index, FileRegion data) throws IOException {
+		if (closed) {
+			data.release();
+			return;
+		}
+		ByteBuffer header = ByteBuffer.allocate(FrameCodec.frameLength(4));
+		FrameCodec.encodeHeader(header, type, 4 + (int) data.length());
+		header.putInt(index);
+		queuePiece(new RegionWrite(header.flip(), data));
+	}
+
+	public void write(MessageType type, int index, int offset, FileRegion data) throws IOException {
+		if (closed) {
+			data.release();
+			return;
+		}
+		ByteBuffer header = ByteBuffer.allocate(FrameCodec.frameLength(8));
+		FrameCodec.encodeHeader(header, type, 8 + (int) data.length());
+		header.putInt(index);
+		header.putInt(offset);
+		queuePiece(new RegionWrite(header.flip(), data));
+	}
+
+	private void queuePiece(RegionWrite piece) throws IOException {
+		writeQueue.add(piece);
+		queuedPieceBytes += piece.region.length();
+		flush();
+	}
+
+	// A choked neighbor expects its requests to be dropped, including those queued here
+	private void dropUnsentPieces() {
+		writeQueue.removeIf(pending -> {
+			if (!(pending instanceof RegionWrite piece) || piece.isStarted())
+				return false;
+			piece.release();
+			queuedPieceBytes -= piece.region.length();
+			peer.metrics.onUnsent(MessageType.PIECE, piece.header.getInt(0) - FrameCodec.HEADER_LENGTH);
+			return true;
+		});
+	}
+
+	private void flush() throws IOException {
+		try {
+			if (writeBuffer.position() > 0) {
+				writeBuffer.flip();
+				channel.write(writeBuffer);
+				writeBuffer.compact();
+				if (writeBuffer.position() > 0) {
+					// socket buffer is full, wait until it drains
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+
+			while (!writeQueue.isEmpty()) {
+				if (!writeQueue.peek().drain(channel)) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				if (writeQueue.poll() instanceof RegionWrite piece)
+					queuedPieceBytes -= piece.region.length();
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public boolean hasPendingWrites() {
+		return writeBuffer.position() > 0 || !writeQueue.isEmpty();
+	}
+
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		session.onClose();
+		for (var pending : writeQueue) // regions that will never be sent now
+			pending.release();
+		writeQueue.clear();
+
+		try {
+			if (key != null)
+				key.cancel();
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		onClosed.run();
+	}
+}
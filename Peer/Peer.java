@@ -1,8 +1,14 @@
 package Peer;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Random;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import Logging.PeerLogger;
 
@@ -27,8 +33,26 @@ public class Peer {
 
     public PeerLogger logger;
     FileManager fileHandler;
-
-    public static volatile boolean ThreadForceExit = false;
+    PieceAssembler assembler; // only set when transferring in blocks
+    PiecePicker picker;
+    PieceHashes hashes;
+    BitfieldCheckpoint checkpoint;
+    CompletionLog completions; // pieces downloaded while running, for HAVE announcements
+    SwarmCompletion swarm;
+    RateLimits limits;
+    PiecePool buffers; // for downloaded pieces until they are written
+    final Set<Integer> verifying = ConcurrentHashMap.newKeySet(); // pieces received and being hash checked
+    AllocationRate allocations = new AllocationRate();
+    private final AtomicBoolean checkpointPending = new AtomicBoolean(false);
+    Metrics metrics;
+
+    final PeerConfig config; // the swarm this peer is in
+    final SwarmHost host; // threads shared with the other peers in the process
+    volatile boolean forceExit = false; // set once the whole swarm has the file
+
+    // notified whenever connections may have something new to send (timeouts,
+    // newly downloaded pieces), so event-driven runners don't have to poll
+    private final Vector<Runnable> stateListeners = new Vector<>();
 
     public enum ChokingUpdate {
         NO_ACTION,
@@ -36,13 +60,15 @@ public class Peer {
         SHOULD_BE_UNCHOKED
     }
 
-    public Peer(int peerId) {
+    public Peer(int peerId, PeerConfig config, SwarmHost host) {
         this.peerId = peerId;
+        this.config = config;
+        this.host = host;
 
-        final var props = PeerConfig.getPeerCommonProps(); // loads Peer properties if not already loaded
-        bitfield = new Bitfield();
+        final var props = config.getPeerCommonProps();
+        bitfield = new Bitfield(props.getNumberPieces());
 
-        final var neighbors = PeerConfig.getNeighborhoodInfo();
+        final var neighbors = config.getNeighborhoodInfo();
         for (int i = 0; i < neighbors.size(); i++) {
             neighborsChokingUpdates.add(ChokingUpdate.NO_ACTION);
             interestedNeighbors.add(false);
@@ -51,29 +77,120 @@ public class Peer {
                 peerIndex = i;
         }
 
+        logger = new PeerLogger(this.peerId, config.file("log_peer_" + this.peerId + ".log").getPath(),
+                props.LogMode.equalsIgnoreCase("async"),
+                props.LogLevel.equalsIgnoreCase("debug"));
+        metrics = new Metrics(this, neighbors.size(), peerIndex);
+        fileHandler = new FileManager(config, this.peerId, neighbors.get(peerIndex).hasFile(), host.getDiskPool());
+        fileHandler.setOnDrained(this::notifyStateListeners); // connections held back requests meanwhile
+        hashes = new PieceHashes(config);
+
+        checkpoint = new BitfieldCheckpoint(config, this.peerId);
+
+        // only advertise pieces that match the piece hashes: the whole file for a
+        // seeder, or whatever a previous run checkpointed
+        boolean[] intact = null;
+        if (neighbors.get(peerIndex).hasFile()) {
+            intact = hashes.checkOrCreate(fileHandler);
+        } else {
+            Bitfield claimed = checkpoint.load();
+            if (claimed != null) {
+                intact = hashes.checkClaimed(fileHandler, claimed);
+                if (this.logger.isDebugEnabled())
+                    this.logger.DebugLog(String.format("Resuming from checkpoint with %d of %d claimed pieces intact",
+                            countTrue(intact), claimed.getNumPiecesDowned()));
+            }
+        }
         for (int i = 0; i < bitfield.getSize(); i++) {
             requestedPieces.add(false);
-            if (neighbors.get(peerIndex).hasFile())
+            if (intact != null && intact[i])
                 bitfield.turnOnBit(i);
         }
 
-        logger = new PeerLogger(this.peerId);
-        fileHandler = new FileManager(this.peerId, neighbors.get(peerIndex).hasFile());
+        completions = new CompletionLog(bitfield.getSize());
+        limits = new RateLimits(config, neighbors.size(), logger);
+
+        // ourselves and every neighbor, whose bitfields start from PeerInfo's hasFile
+        swarm = new SwarmCompletion(this, neighbors.size());
+        swarm.track(bitfield);
+        for (int i = 0; i < neighbors.size(); i++)
+            if (i != peerIndex)
+                swarm.track(neighbors.get(i).bitfield);
+        picker = new PiecePicker(PiecePicker.Policy.valueOf(props.PieceSelection.toUpperCase()), bitfield,
+                requestedPieces);
+        // enough idle buffers for the write queue plus a few pieces in flight per neighbor
+        buffers = new PiecePool(props.PieceSize, props.WriteQueueSize + 4 * neighbors.size());
+        if (props.BlockSize > 0)
+            assembler = new PieceAssembler(fileHandler, props.BlockSize, buffers);
 
         preferredNeighborIds = new Vector<>(props.NumberOfPreferredNeighbors);
 
-        this.logger.DebugLog(String.format("Created Peer with config: %s", props.toString()));
-        this.logger.DebugLog(String.format("Using PeerInfo: %s", PeerConfig.neighborsToString()));
+        if (this.logger.isDebugEnabled()) {
+            this.logger.DebugLog(String.format("Created Peer with config: %s", props.toString()));
+            this.logger.DebugLog(String.format("Using PeerInfo: %s", config.neighborsToString()));
 
-        if (neighbors.get(peerIndex).hasFile()) {
-            this.logger.DebugLog("This Peer (" + peerId + ") has the file.");
-        } else {
-            this.logger.DebugLog("This Peer (" + peerId + ") does not have the file.");
+            if (neighbors.get(peerIndex).hasFile()) {
+                this.logger.DebugLog("This Peer (" + peerId + ") has the file.");
+            } else {
+                this.logger.DebugLog("This Peer (" + peerId + ") does not have the file.");
+            }
         }
     }
 
-    public synchronized boolean shouldForceExit() {
-        return ThreadForceExit;
+    private static int countTrue(boolean[] values) {
+        int count = 0;
+        for (boolean value : values)
+            if (value)
+                count++;
+        return count;
+    }
+
+    // Persists download progress, skipped if nothing changed since the last save
+    public void saveCheckpoint() {
+        // bits go up while pieces are still queued for writing, so only claim
+        // the ones that were set before the queue was flushed
+        Bitfield written = new Bitfield(bitfield.getSize());
+        written.setBitField(bitfield.encode());
+        try {
+            fileHandler.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        checkpoint.save(written);
+    }
+
+    // Like saveCheckpoint, but on the disk pool once the pieces are written, so the caller never blocks
+    public void saveCheckpointLater() {
+        if (!checkpointPending.compareAndSet(false, true))
+            return; // the last one is still waiting for the disk
+        Bitfield written = new Bitfield(bitfield.getSize());
+        written.setBitField(bitfield.encode());
+        fileHandler.afterFlush(() -> {
+            checkpointPending.set(false);
+            checkpoint.save(written);
+        });
+    }
+
+    public boolean shouldForceExit() {
+        return forceExit;
+    }
+
+    public boolean hasFile() {
+        return bitfield.isFinished();
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public void addStateListener(Runnable listener) {
+        stateListeners.add(listener);
+    }
+
+    void notifyStateListeners() {
+        for (var listener : stateListeners)
+            listener.run();
     }
 
     public synchronized boolean wantsToUnchoke(int neighborId) {
@@ -87,40 +204,52 @@ public class Peer {
         return false;
     }
 
+    /**
+     * Tit-for-tat: the interested neighbors that upload to us the fastest, or
+     * that we upload to the fastest once we are seeding. While leeching,
+     * neighbors that sent us nothing for SnubbingTimeout seconds are left to
+     * the optimistic unchoke.
+     */
+
     private synchronized void recomputePreferredNeighbors() {
+        final long now = System.nanoTime();
+        final long snubbingWindow = config.getPeerCommonProps().SnubbingTimeout * 1_000_000_000L;
+        final boolean peerHasFile = this.bitfield.isFinished();
+
         ArrayList<Neighbor> interestedNeigh = new ArrayList<>();
-        for (int i = 0; i < this.interestedNeighbors.size(); i++)
-            if (this.interestedNeighbors.get(i))
-                interestedNeigh.add(PeerConfig.getNeighborhoodInfo().get(i));
-
-        boolean peerHasFile = this.bitfield.isFinished();
-        interestedNeigh.sort((var n1, var n2) -> {
-            if (peerHasFile || n1.bytesTransferedToPeer == n2.bytesTransferedToPeer) {
-                // choose at random
-                int[] r = new int[] { -1, 1 };
-                return r[new Random().nextInt(2)];
+        for (int i = 0; i < config.getNeighborhoodInfo().size(); i++) {
+            var neighbor = config.getNeighborhoodInfo().get(i);
+            if (neighbor.ID == peerId)
+                continue;
+
+            neighbor.downloadRate.sample(now);
+            neighbor.uploadRate.sample(now);
+
+            if (!this.interestedNeighbors.get(i))
+                continue;
+            if (!peerHasFile && snubbingWindow > 0 && neighbor.downloadRate.isIdleFor(snubbingWindow, now)) {
+                if (this.logger.isDebugEnabled())
+                    this.logger.DebugLog("Peer " + neighbor.ID + " is snubbing us, leaving it choked");
+                continue;
             }
-            return (int) (n1.bytesTransferedToPeer - n2.bytesTransferedToPeer);
-        });
+            interestedNeigh.add(neighbor);
+        }
+
+        // shuffled first so the stable sort breaks ties at random
+        Collections.shuffle(interestedNeigh);
+        interestedNeigh.sort(Comparator.comparingDouble(
+                (Neighbor n) -> peerHasFile ? n.uploadRate.getRate() : n.downloadRate.getRate()).reversed());
 
         preferredNeighborIds.clear();
-        int numPrefNeigh = Math.min(PeerConfig.getPeerCommonProps().NumberOfPreferredNeighbors,
+        int numPrefNeigh = Math.min(config.getPeerCommonProps().NumberOfPreferredNeighbors,
                 interestedNeigh.size());
         for (int i = 0; i < numPrefNeigh; i++)
             preferredNeighborIds.add(interestedNeigh.get(i).ID);
-
-        // reset download rates of all neighbors
-        for (var neighbor : PeerConfig.getNeighborhoodInfo())
-            neighbor.bytesTransferedToPeer = 0L;
-
-        // reset requested pieces to prevent deadlock
-        for (int i = 0; i < requestedPieces.size(); i++)
-            requestedPieces.set(i, false);
     }
 
     private synchronized Integer pickOptimisticallyUnchokedNeighbor() {
-        // for (int i = 0; i < PeerConfig.getNeighborhoodInfo().size(); i++) {
-        // var neighbor = PeerConfig.getNeighborhoodInfo().get(i);
+        // for (int i = 0; i < config.getNeighborhoodInfo().size(); i++) {
+        // var neighbor = config.getNeighborhoodInfo().get(i);
         // this.logger.DebugLog(String.format("[IS SELF]: %b, [isInterested]: %b,
         // [isChoked]: %b, [chokingUpdate]: %s",
         // neighbor.ID == peerId, interestedNeighbors.get(i), neighbor.isChoked,
@@ -128,18 +257,14 @@ public class Peer {
         // }
 
         ArrayList<Neighbor> interestedChokedNeighbors = new ArrayList<>();
-        for (int i = 0; i < PeerConfig.getNeighborhoodInfo().size(); i++) {
-            var neighbor = PeerConfig.getNeighborhoodInfo().get(i);
+        for (int i = 0; i < config.getNeighborhoodInfo().size(); i++) {
+            var neighbor = config.getNeighborhoodInfo().get(i);
             if (neighbor.ID == peerId || !interestedNeighbors.get(i) || !neighbor.isChoked)
                 // || neighborsChokingUpdates.get(i) == ChokingUpdate.SHOULD_BE_UNCHOKED)
                 continue;
             interestedChokedNeighbors.add(neighbor);
         }
 
-        // reset requested pieces to prevent deadlock
-        for (int i = 0; i < requestedPieces.size(); i++)
-            requestedPieces.set(i, false);
-
         if (interestedChokedNeighbors.size() == 0)
             return -1;
 
@@ -149,12 +274,14 @@ public class Peer {
     }
 
     public synchronized void onChokingTimeout() {
+        ChokeRoundEvent event = new ChokeRoundEvent();
+        event.begin();
         try {
             recomputePreferredNeighbors();
             logger.ChangePrefLog(preferredNeighborIds);
 
-            for (int i = 0; i < PeerConfig.getNeighborhoodInfo().size(); i++) {
-                var neighbor = PeerConfig.getNeighborhoodInfo().get(i);
+            for (int i = 0; i < config.getNeighborhoodInfo().size(); i++) {
+                var neighbor = config.getNeighborhoodInfo().get(i);
 
                 if (neighbor.ID == this.peerId) // ignore self
                     continue;
@@ -162,38 +289,52 @@ public class Peer {
                 if (neighbor.isChoked && this.wantsToUnchoke(neighbor.ID)) {
                     neighborsChokingUpdates.set(i, ChokingUpdate.SHOULD_BE_UNCHOKED);
                     neighbor.unchoke();
+                    event.unchoked++;
                 } else if (!neighbor.isChoked && !this.wantsToUnchoke(neighbor.ID)) {
                     neighborsChokingUpdates.set(i, ChokingUpdate.SHOULD_BE_CHOKED);
                     neighbor.choke();
+                    event.choked++;
                 }
             }
             chokingTimeout = !chokingTimeout; // flipping bit indicates change of state
         } catch (Exception e) {
             e.printStackTrace();
         }
+        notifyStateListeners();
+        if (event.shouldCommit()) {
+            event.preferred = preferredNeighborIds.toString();
+            event.commit();
+        }
     }
 
     public synchronized void onOptimisticUnchokingTimeout() {
+        ChokeRoundEvent event = new ChokeRoundEvent();
+        event.begin();
+        event.optimistic = true;
         try {
             int newOptimisticNeighborId = pickOptimisticallyUnchokedNeighbor();
+            event.optimisticNeighbor = newOptimisticNeighborId;
             logger.ChangeOptLog(newOptimisticNeighborId);
 
-            for (int i = 0; i < PeerConfig.getNeighborhoodInfo().size(); i++) {
-                var neighbor = PeerConfig.getNeighborhoodInfo().get(i);
+            for (int i = 0; i < config.getNeighborhoodInfo().size(); i++) {
+                var neighbor = config.getNeighborhoodInfo().get(i);
                 if (neighbor.ID != newOptimisticNeighborId)
                     continue;
 
                 neighborsChokingUpdates.set(i, ChokingUpdate.SHOULD_BE_UNCHOKED);
                 neighbor.unchoke();
+                event.unchoked++;
                 optimisticUnchokeTimeout = !optimisticUnchokeTimeout; // flipping bit indicates change of state
                 break;
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
+        notifyStateListeners();
+        event.commit();
     }
 
-    public synchronized boolean hasPiece(int pieceIndex) {
+    public boolean hasPiece(int pieceIndex) { // the bitfield is safe to read from any thread
         return this.bitfield.getBit(pieceIndex);
     }
 
@@ -7,6 +7,22 @@ public class PeerCommonProperties {
     public String FileName;
     public Integer FileSize;
     public Integer PieceSize;
+    public String StorageMode = "file"; // file, or mmap to memory-map the shared file
+    public Integer OutstandingRequests = 0; // requests in flight per neighbor, 0 adapts to the link
+    public Integer BlockSize = 0; // transfer pieces in blocks of this size, 0 transfers whole pieces
+    public String PieceSelection = "rarest"; // rarest first, or random
+    public Integer SnubbingTimeout = 60; // seconds without data before a neighbor loses its preferred slot, 0 never
+    public Integer MaxUploadRate = 0; // bytes per second over all neighbors, 0 for unlimited
+    public Integer MaxDownloadRate = 0;
+    public Integer MaxNeighborUploadRate = 0; // bytes per second to/from each single neighbor
+    public Integer MaxNeighborDownloadRate = 0;
+    public Integer CheckpointInterval = 5; // seconds between download progress checkpoints, 0 only saves at exit
+    public Integer WriteQueueSize = 64; // pieces waiting for the disk writer thread, 0 writes on the receiving thread
+    public String SyncPolicy = "complete"; // fsync once the file is complete, none, or every N pieces written
+    public Integer ReadCacheSize = 0; // bytes of pieces a seeder keeps in memory for uploading, 0 disables
+    public String LogMode = "async"; // async formats and writes the log on a background thread, or sync
+    public String LogLevel = "info"; // info, or debug to also log DEBUG lines
+    public Integer MetricsPort = 0; // serve metrics over HTTP from this port on, one per peer; 0 only has JMX
 
     public Integer getNumberPieces() {
         return (int) Math.ceil(FileSize / (double) PieceSize);
@@ -19,7 +35,23 @@ public class PeerCommonProperties {
         s.append("OptimisticUnchokingInterval " + OptimisticUnchokingInterval + "; ");
         s.append("FileName " + FileName + "; ");
         s.append("FileSize " + FileSize + "; ");
-        s.append("PieceSize " + PieceSize + ".");
+        s.append("PieceSize " + PieceSize + "; ");
+        s.append("StorageMode " + StorageMode + "; ");
+        s.append("OutstandingRequests " + OutstandingRequests + "; ");
+        s.append("BlockSize " + BlockSize + "; ");
+        s.append("PieceSelection " + PieceSelection + "; ");
+        s.append("SnubbingTimeout " + SnubbingTimeout + "; ");
+        s.append("MaxUploadRate " + MaxUploadRate + "; ");
+        s.append("MaxDownloadRate " + MaxDownloadRate + "; ");
+        s.append("MaxNeighborUploadRate " + MaxNeighborUploadRate + "; ");
+        s.append("MaxNeighborDownloadRate " + MaxNeighborDownloadRate + "; ");
+        s.append("CheckpointInterval " + CheckpointInterval + "; ");
+        s.append("WriteQueueSize " + WriteQueueSize + "; ");
+        s.append("SyncPolicy " + SyncPolicy + "; ");
+        s.append("ReadCacheSize " + ReadCacheSize + "; ");
+        s.append("LogMode " + LogMode + "; ");
+        s.append("LogLevel " + LogLevel + "; ");
+        s.append("MetricsPort " + MetricsPort + ".");
 
         return s.toString();
     }
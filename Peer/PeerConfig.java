@@ -12,13 +12,20 @@ import java.util.Vector;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+/**
+ * One swarm's configuration: Common.small.cfg and PeerInfo.small.cfg from the
+ * swarm's directory, which also holds its shared file, logs and piece hashes.
+ * Every peer gets an instance of its own, so any number of swarms (or peers
+ * of one swarm) can run in a process.
+ */
 public class PeerConfig {
 
     public static final String PeerPropertiesFile = "Common.small.cfg";
     public static final String PeerInfoFile = "PeerInfo.small.cfg";
 
-    private static PeerCommonProperties props = null;
-    private static Vector<Neighbor> neighbors = null;
+    private final File directory;
+    private final PeerCommonProperties props;
+    private final Vector<Neighbor> neighbors;
 
     private volatile static HashMap<String, String> dnsShortcut = new HashMap<>() {
         {
@@ -39,11 +46,34 @@ public class PeerConfig {
         }
     };
 
-    public static void LoadPeerProperties(String filepath) {
+    public PeerConfig(File directory) {
+        this.directory = directory;
+        this.props = ReadPeerProperties(file(PeerPropertiesFile).getPath());
+        this.neighbors = Neighbor.LoadNeighborData(file(PeerInfoFile).getPath(), props.getNumberPieces());
+    }
+
+    // No neighbors, e.g. to work on a file outside of a swarm
+    public PeerConfig(File directory, PeerCommonProperties props) {
+        this.directory = directory;
+        this.props = props;
+        this.neighbors = new Vector<>();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    // A path relative to the swarm's directory
+    public File file(String path) {
+        return new File(directory, path);
+    }
+
+    // Parses a Common.cfg, e.g. again to pick up changes made while running
+    public static PeerCommonProperties ReadPeerProperties(String filepath) {
         Map<String, Field> properties = Stream.of(PeerCommonProperties.class.getDeclaredFields())
                 .collect(Collectors.toMap(f -> f.getName(), f -> f));
 
-        PeerConfig.props = new PeerCommonProperties();
+        PeerCommonProperties parsed = new PeerCommonProperties();
 
         try {
             File configFile = new File(filepath);
@@ -64,7 +94,7 @@ public class PeerConfig {
                 Object newData = f.getType().isAssignableFrom(Integer.class) ? Integer.parseInt(data[1]) : data[1];
                 try {
                     // System.out.println(String.format("Setting %s to %s", f.getName(), data[1]));
-                    f.set(PeerConfig.props, newData);
+                    f.set(parsed, newData);
                 } catch (IllegalAccessException e) {
                     System.out.println(String.format(
                             "Failed to parse data for \"%s\" due to IllegalAccessException", data[0]));
@@ -75,26 +105,15 @@ public class PeerConfig {
             System.out.println(String.format("Could not find file \"%s\"", filepath));
             e.printStackTrace();
         }
+        return parsed;
     }
 
-    public static void LoadNeighborsFromFile(String filename) {
-        PeerConfig.neighbors = Neighbor.LoadNeighborData(filename);
+    public PeerCommonProperties getPeerCommonProps() {
+        return props;
     }
 
-    public static PeerCommonProperties getPeerCommonProps() {
-        if (PeerConfig.props == null) {
-            PeerConfig.LoadPeerProperties(PeerPropertiesFile);
-        }
-
-        return PeerConfig.props;
-    }
-
-    public static Vector<Neighbor> getNeighborhoodInfo() {
-        if (PeerConfig.neighbors == null) {
-            PeerConfig.LoadNeighborsFromFile(PeerInfoFile);
-        }
-
-        return PeerConfig.neighbors;
+    public Vector<Neighbor> getNeighborhoodInfo() {
+        return neighbors;
     }
 
     public static String getIpAddress(String hostname) {
@@ -111,22 +130,12 @@ public class PeerConfig {
         return dnsShortcut.get("localhost");
     }
 
-    public static synchronized boolean allPeersHaveFile(Peer peer) {
-        if (!peer.bitfield.isFinished())
-            return false;
-
-        for (var neighbor : getNeighborhoodInfo()) {
-            if (neighbor.ID == peer.peerId)
-                continue;
-            if (!neighbor.hasFile())
-                return false;
-        }
-        return true;
+    // Counted as bitfields finish, so this is a single volatile read
+    public static boolean allPeersHaveFile(Peer peer) {
+        return peer.swarm.isComplete();
     }
 
-    public static String neighborsToString() {
-        var neighbors = getNeighborhoodInfo();
-
+    public String neighborsToString() {
         StringBuffer s = new StringBuffer();
         for (var n : neighbors) {
             s.append(String.format("Peer %d at %s : %d; ", n.ID, n.hostname, n.port));
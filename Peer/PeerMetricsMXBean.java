@@ -0,0 +1,29 @@
+package Peer;
+
+import java.util.Map;
+
+/**
+ * JMX view of a running peer as a whole.
+ */
+public interface PeerMetricsMXBean {
+
+	int getPeerId();
+
+	int getPiecesDownloaded();
+
+	int getNumPieces();
+
+	double getCompletionPercent();
+
+	double getSwarmCompletionPercent(); // pieces held over every peer, us included
+
+	int getFinishedPeers();
+
+	Map<String, Long> getMessagesReceived(); // by message type
+
+	Map<String, Long> getMessagesSent();
+
+	long getBytesReceived(); // in frames, handshakes aside
+
+	long getBytesSent();
+}
@@ -1,26 +1,67 @@
 package Peer;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * A whole piece, either over a heap array or over a buffer borrowed from a
+ * {@link PiecePool}. Pooled pieces are reference counted: the code that got
+ * the piece owns one reference and releases it when done, and anything that
+ * keeps the piece beyond that (e.g. a queued disk write) retains its own. The
+ * buffer goes back to the pool with the last release.
+ */
 public class Piece {
 
 	private final int whichPiece;
-	private final byte[] pieceBytes;
+	private final int length;
+	private final ByteBuffer data; // the piece from position 0 up to length
+	private final PiecePool pool; // null for heap pieces, which are simply garbage collected
+	private final AtomicInteger references = new AtomicInteger(1);
 
 	public Piece(int which, byte[] pieceBytes) {
+		this(which, ByteBuffer.wrap(pieceBytes), pieceBytes.length, null);
+	}
 
+	Piece(int which, ByteBuffer data, int length, PiecePool pool) {
 		this.whichPiece = which;
-		this.pieceBytes = pieceBytes;
+		this.length = length;
+		this.data = data;
+		this.pool = pool;
+	}
+
+	// The contents, positioned at the start of the piece; only valid while a reference is held
+	public ByteBuffer getData() {
+		return data.asReadOnlyBuffer().position(0).limit(length);
 	}
 
-	public byte[] getPieceBytes() {
-		return pieceBytes;
+	public int getLength() {
+		return length;
 	}
 
 	public int getWhichPiece() {
 		return whichPiece;
 	}
 
+	public void retain() {
+		references.incrementAndGet();
+	}
+
+	// Retains the piece unless it was already released for good
+	boolean tryRetain() {
+		while (true) {
+			int current = references.get();
+			if (current == 0)
+				return false;
+			if (references.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	public void release() {
+		if (references.decrementAndGet() == 0 && pool != null)
+			pool.recycle(data);
+	}
+
 	public static Piece decodePieceMessagePayload(byte[] msgPayload) {
 		byte[] whichPiece = new byte[4];
 		for (int i = 0; i < 4; i++)
@@ -32,4 +73,19 @@ public class Piece {
 
 		return new Piece(ByteBuffer.wrap(whichPiece).getInt(), piece);
 	}
+
+	// Copies the piece out of a PIECE payload, e.g. a decoder's reusable buffer, into a pooled buffer
+	public static Piece decodePieceMessagePayload(ByteBuffer msgPayload, PiecePool pool) {
+		int whichPiece = msgPayload.getInt();
+		int length = msgPayload.remaining();
+		if (length > pool.getBufferSize()) { // too long for a piece of this file, but leave that to verification
+			byte[] piece = new byte[length];
+			msgPayload.get(piece);
+			return new Piece(whichPiece, piece);
+		}
+
+		ByteBuffer data = pool.acquire();
+		data.put(msgPayload);
+		return new Piece(whichPiece, data, length, pool);
+	}
 }
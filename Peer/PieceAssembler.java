@@ -0,0 +1,179 @@
+package Peer;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * Block level download state used when BlockSize is set in Common.cfg. Pieces
+ * being downloaded get a pooled assembly buffer, and their blocks can be requested
+ * from (and arrive from) any neighbor that has the piece. A piece is only handed
+ * back once every block of it arrived.
+ *
+ * Blocks are identified by a global block id, piece * blocksPerPiece + block,
+ * which is what the request pipelines track. Shared by all connections.
+ */
+class PieceAssembler {
+
+	private static class Assembly {
+		final ByteBuffer data;
+		final int length;
+		final boolean[] requested;
+		final boolean[] received;
+		int numReceived = 0;
+
+		Assembly(ByteBuffer data, int length, int numBlocks) {
+			this.data = data;
+			this.length = length;
+			requested = new boolean[numBlocks];
+			received = new boolean[numBlocks];
+		}
+	}
+
+	private final FileManager files;
+	private final PiecePool buffers;
+	private final int blockSize;
+	private final int blocksPerPiece;
+
+	private final HashMap<Integer, Assembly> partialPieces = new HashMap<>();
+
+	public PieceAssembler(FileManager files, int blockSize, PiecePool buffers) {
+		var props = files.getConfig().getPeerCommonProps();
+		this.files = files;
+		this.buffers = buffers;
+		this.blockSize = Math.min(blockSize, props.PieceSize);
+		this.blocksPerPiece = (props.PieceSize + this.blockSize - 1) / this.blockSize;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int pieceOf(int blockId) {
+		return blockId / blocksPerPiece;
+	}
+
+	public int offsetOf(int blockId) {
+		return (blockId % blocksPerPiece) * blockSize;
+	}
+
+	public int lengthOf(int blockId) {
+		return Math.min(blockSize, files.getPieceLength(pieceOf(blockId)) - offsetOf(blockId));
+	}
+
+	public int blockIdOf(int pieceIndex, int offset) {
+		return pieceIndex * blocksPerPiece + offset / blockSize;
+	}
+
+	private int numBlocks(int pieceIndex) {
+		return (files.getPieceLength(pieceIndex) + blockSize - 1) / blockSize;
+	}
+
+	private int claimBlock(int pieceIndex, Assembly assembly) {
+		for (int b = 0; b < assembly.requested.length; b++) {
+			if (!assembly.requested[b] && !assembly.received[b]) {
+				assembly.requested[b] = true;
+				return pieceIndex * blocksPerPiece + b;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Claims an unrequested block of a piece that is already partially
+	 * downloaded and that the neighbor has.
+	 *
+	 * @return The block id, or -1 if there is none.
+	 */
+
+	public synchronized int nextBlock(Bitfield theirs) {
+		for (var entry : partialPieces.entrySet()) {
+			if (!theirs.getBit(entry.getKey()))
+				continue;
+			int blockId = claimBlock(entry.getKey(), entry.getValue());
+			if (blockId != -1)
+				return blockId;
+		}
+		return -1;
+	}
+
+	/**
+	 * Endgame: picks a block of a partially downloaded piece that the neighbor
+	 * has and that hasn't arrived yet, even if it is requested from someone
+	 * else already.
+	 *
+	 * @param alreadyAsked Whether the block was already requested from this
+	 *                     neighbor.
+	 * @return The block id, or -1 if there is none.
+	 */
+
+	public synchronized int endgameBlock(Bitfield theirs, IntPredicate alreadyAsked) {
+		for (var entry : partialPieces.entrySet()) {
+			if (!theirs.getBit(entry.getKey()))
+				continue;
+			boolean[] received = entry.getValue().received;
+			for (int b = 0; b < received.length; b++) {
+				int blockId = entry.getKey() * blocksPerPiece + b;
+				if (!received[b] && !alreadyAsked.test(blockId)) {
+					entry.getValue().requested[b] = true;
+					return blockId;
+				}
+			}
+		}
+		return -1;
+	}
+
+	// Whether a block is still missing; false once its piece is complete
+	public synchronized boolean isNeeded(int blockId) {
+		Assembly assembly = partialPieces.get(pieceOf(blockId));
+		return assembly != null && !assembly.received[blockId % blocksPerPiece];
+	}
+
+	/**
+	 * Starts downloading a piece (or joins a download in progress) and claims
+	 * its first unrequested block.
+	 *
+	 * @return The block id, or -1 if every block of it is already requested.
+	 */
+
+	public synchronized int startPiece(int pieceIndex) {
+		Assembly assembly = partialPieces.get(pieceIndex);
+		if (assembly == null) {
+			assembly = new Assembly(buffers.acquire(), files.getPieceLength(pieceIndex), numBlocks(pieceIndex));
+			partialPieces.put(pieceIndex, assembly);
+		}
+		return claimBlock(pieceIndex, assembly);
+	}
+
+	// Makes a block requestable again, e.g. after the neighbor choked us
+	public synchronized void release(int blockId) {
+		Assembly assembly = partialPieces.get(pieceOf(blockId));
+		if (assembly != null)
+			assembly.requested[blockId % blocksPerPiece] = false;
+	}
+
+	/**
+	 * Copies a received block into its piece's assembly buffer.
+	 *
+	 * @return The whole piece if this was its last missing block, otherwise null.
+	 */
+
+	public synchronized Piece receive(int pieceIndex, int offset, ByteBuffer data) {
+		Assembly assembly = partialPieces.get(pieceIndex);
+		if (assembly == null || offset < 0 || offset % blockSize != 0 || offset >= assembly.length
+				|| data.remaining() != Math.min(blockSize, assembly.length - offset))
+			return null; // not something we asked for, or piece already done
+
+		int block = offset / blockSize;
+		if (assembly.received[block])
+			return null;
+
+		assembly.data.put(offset, data, data.position(), data.remaining());
+		assembly.received[block] = true;
+		if (++assembly.numReceived < assembly.received.length)
+			return null;
+
+		partialPieces.remove(pieceIndex);
+		return new Piece(pieceIndex, assembly.data, assembly.length, buffers);
+	}
+}
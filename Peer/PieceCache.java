@@ -0,0 +1,178 @@
+package Peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pieces held off-heap for uploading, so a seeder serving the same pieces to
+ * many neighbors reads each of them from disk once. Eviction is segmented LRU:
+ * pieces enter a probation segment and are only promoted to the protected one
+ * when requested again, so a one-off run of requests (or of prefetches nobody
+ * asked for) can only push out other one-off pieces, never the popular ones.
+ *
+ * A miss also reads the following pieces in the background, since they sit
+ * next to it on disk and are cheap to fetch together. Neighbors picking rarest
+ * first rarely ask for pieces in order though, so prefetching only fills free
+ * space and never evicts a piece somebody asked for.
+ *
+ * Cached buffers are never reused, only dropped, so a region handed out stays
+ * valid while it is being sent even if its piece is evicted meanwhile.
+ */
+class PieceCache {
+
+	private static final double PROTECTED_SHARE = 0.8;
+	private static final int PREFETCH_PIECES = 2;
+
+	private final FileManager files;
+	private final int numPieces;
+	private final int capacity; // in pieces
+	private final int protectedCapacity;
+
+	// access ordered, so iteration starts at the least recently used piece
+	private final LinkedHashMap<Integer, ByteBuffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<Integer, ByteBuffer> protectedPieces = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final Executor prefetcher; // the disk pool
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder prefetches = new LongAdder();
+
+	public PieceCache(FileManager files, int numPieces, int capacity, Executor prefetcher) {
+		this.files = files;
+		this.prefetcher = prefetcher;
+		this.numPieces = numPieces;
+		this.capacity = Math.max(1, capacity);
+		this.protectedCapacity = (int) (this.capacity * PROTECTED_SHARE);
+	}
+
+	/**
+	 * The piece's contents, read from disk if it isn't cached.
+	 *
+	 * @return A buffer of its own, positioned at the start of the piece.
+	 */
+
+	public ByteBuffer get(int which) throws IOException {
+		ByteBuffer cached = lookup(which);
+		if (cached != null) {
+			hits.increment();
+			return cached.duplicate();
+		}
+
+		misses.increment();
+		ByteBuffer loaded = load(which);
+		insert(which, loaded, true);
+		prefetchAfter(which);
+		return loaded.duplicate();
+	}
+
+	private ByteBuffer load(int which) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(files.getPieceLength(which));
+		files.readPiece(which, buffer);
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
+	private void prefetchAfter(int which) {
+		final int last = Math.min(numPieces - 1, which + PREFETCH_PIECES);
+		if (which >= last)
+			return;
+
+		prefetcher.execute(() -> {
+			for (int i = which + 1; i <= last; i++) {
+				if (contains(i))
+					continue;
+				if (isFull())
+					return;
+				try {
+					if (insert(i, load(i), false))
+						prefetches.increment();
+				} catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+			}
+		});
+	}
+
+	private synchronized boolean isFull() {
+		return probation.size() + protectedPieces.size() >= capacity;
+	}
+
+	private synchronized boolean contains(int which) {
+		return probation.containsKey(which) || protectedPieces.containsKey(which);
+	}
+
+	// Finds a cached piece, promoting it to the protected segment on its second use
+	private synchronized ByteBuffer lookup(int which) {
+		ByteBuffer buffer = protectedPieces.get(which);
+		if (buffer != null)
+			return buffer;
+
+		buffer = probation.remove(which);
+		if (buffer == null)
+			return null;
+
+		protectedPieces.put(which, buffer);
+		if (protectedPieces.size() > protectedCapacity) { // the protected segment's LRU piece gets another chance
+			var eldest = removeEldest(protectedPieces);
+			probation.put(eldest.getKey(), eldest.getValue());
+		}
+		return buffer;
+	}
+
+	private synchronized boolean insert(int which, ByteBuffer buffer, boolean evict) {
+		if (contains(which))
+			return false; // loaded twice concurrently
+		if (!evict && isFull())
+			return false;
+		probation.put(which, buffer);
+
+		while (probation.size() + protectedPieces.size() > capacity) {
+			removeEldest(probation.isEmpty() ? protectedPieces : probation);
+			evictions.increment();
+		}
+		return true;
+	}
+
+	private static Map.Entry<Integer, ByteBuffer> removeEldest(LinkedHashMap<Integer, ByteBuffer> segment) {
+		Iterator<Map.Entry<Integer, ByteBuffer>> entries = segment.entrySet().iterator();
+		var eldest = entries.next();
+		var removed = Map.entry(eldest.getKey(), eldest.getValue());
+		entries.remove();
+		return removed;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getPrefetches() {
+		return prefetches.sum();
+	}
+
+	public double getHitRate() {
+		long requests = getHits() + getMisses();
+		return requests == 0 ? 0 : getHits() / (double) requests;
+	}
+
+	public synchronized String toString() {
+		return String.format("Read cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d prefetched, "
+				+ "%d of %d pieces cached", getHits(), getMisses(), getHitRate() * 100, getEvictions(),
+				getPrefetches(), probation.size() + protectedPieces.size(), capacity);
+	}
+}
@@ -0,0 +1,40 @@
+package Peer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("p2p.PieceComplete")
+@Label("Piece Complete")
+@Description("Hash check and storing of a downloaded piece")
+@Category({ "P2P", "Pieces" })
+class PieceCompleteEvent extends Event {
+
+	@Label("Neighbor")
+	int neighbor;
+
+	@Label("Piece")
+	int piece;
+
+	@Label("Size")
+	@DataAmount
+	int size;
+
+	@Label("Outcome")
+	@Description("stored, duplicate, or corrupt")
+	String outcome;
+
+	// Ends the event begun before checking the piece, recording it if a recording asks for it
+	void record(int neighbor, Piece piece, String outcome) {
+		if (!shouldCommit())
+			return;
+		this.neighbor = neighbor;
+		this.piece = piece.getWhichPiece();
+		this.size = piece.getLength();
+		this.outcome = outcome;
+		commit();
+	}
+}
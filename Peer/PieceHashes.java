@@ -0,0 +1,245 @@
+package Peer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SHA-256 digest of every piece, kept in "FileName.sha256" next to the config
+ * files so every peer sees the same copy. The first line is "FileSize
+ * PieceSize", followed by one hex digest per piece.
+ *
+ * A seeder creates the file, or checks its copy of the shared file against it
+ * when it already exists. Peers that start before it exists accept pieces
+ * unverified until it shows up.
+ */
+public class PieceHashes {
+
+	private static final String ALGORITHM = "SHA-256";
+	private static final int PIECES_PER_TASK = 16; // hashing work split below this
+
+	private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final PeerConfig config;
+	private final File metadataFile;
+	private volatile byte[][] pieceDigests = null;
+	private volatile long lastLoadAttempt = 0;
+
+	public PieceHashes(PeerConfig config) {
+		this.config = config;
+		this.metadataFile = config.file(config.getPeerCommonProps().FileName + ".sha256");
+	}
+
+	public static byte[] digest(ByteBuffer data) {
+		MessageDigest digest = digests.get();
+		digest.reset();
+		digest.update(data);
+		return digest.digest();
+	}
+
+	// Whether digests are known; retries loading the file at most once a second
+	public boolean isAvailable() {
+		if (pieceDigests != null)
+			return true;
+
+		long now = System.currentTimeMillis();
+		if (now - lastLoadAttempt >= 1000) {
+			lastLoadAttempt = now;
+			pieceDigests = load();
+		}
+		return pieceDigests != null;
+	}
+
+	public boolean verify(Piece piece) {
+		return MessageDigest.isEqual(pieceDigests[piece.getWhichPiece()], digest(piece.getData()));
+	}
+
+	/**
+	 * Seeder start up: checks the file against existing metadata, or creates
+	 * the metadata if there is none for this file layout and every piece could
+	 * be read.
+	 *
+	 * @return Which pieces are intact, i.e. safe to advertise.
+	 */
+
+	public boolean[] checkOrCreate(FileManager files) {
+		int numPieces = config.getPeerCommonProps().getNumberPieces();
+		byte[][] actual = hashFile(files);
+		boolean[] intact = new boolean[numPieces];
+
+		byte[][] expected = load();
+		if (expected == null) {
+			boolean complete = true;
+			for (int i = 0; i < numPieces; i++) {
+				intact[i] = actual[i].length > 0;
+				complete &= intact[i];
+			}
+			if (!complete) { // a digest of what we couldn't read would never verify anywhere
+				System.out.println("Could not read every piece, not creating " + metadataFile);
+				return intact;
+			}
+			store(actual);
+			pieceDigests = actual;
+			return intact;
+		}
+
+		pieceDigests = expected;
+		for (int i = 0; i < numPieces; i++) {
+			intact[i] = MessageDigest.isEqual(expected[i], actual[i]);
+			if (!intact[i])
+				System.out.println("Piece " + i + " does not match " + metadataFile + ", not sharing it");
+		}
+		return intact;
+	}
+
+	/**
+	 * Restart: re-verifies only the pieces a checkpoint claims, in parallel.
+	 *
+	 * @return Which pieces are intact; without metadata to check against, the
+	 *         claimed ones, as trusted as any piece received before it exists.
+	 */
+
+	public boolean[] checkClaimed(FileManager files, Bitfield claimed) {
+		boolean[] intact = new boolean[claimed.getSize()];
+		if (!isAvailable()) {
+			System.out.println("No " + metadataFile + " to check the checkpoint against, resuming with its "
+					+ claimed.getNumPiecesDowned() + " pieces unverified");
+			for (int i = claimed.nextSetBit(0); i != -1; i = claimed.nextSetBit(i + 1))
+				intact[i] = true;
+			return intact;
+		}
+
+		int[] pieces = new int[claimed.getNumPiecesDowned()];
+		int count = 0;
+		for (int i = claimed.nextSetBit(0); i != -1 && count < pieces.length; i = claimed.nextSetBit(i + 1))
+			pieces[count++] = i;
+
+		byte[][] actual = hashPieces(files, pieces);
+		for (int i : pieces)
+			intact[i] = MessageDigest.isEqual(pieceDigests[i], actual[i]);
+		return intact;
+	}
+
+	// Hashes every piece in parallel on all cores, reading by position
+	public static byte[][] hashFile(FileManager files) {
+		int[] pieces = new int[files.getConfig().getPeerCommonProps().getNumberPieces()];
+		for (int i = 0; i < pieces.length; i++)
+			pieces[i] = i;
+		return hashPieces(files, pieces);
+	}
+
+	// Digests end up at their piece index, pieces not listed stay null
+	public static byte[][] hashPieces(FileManager files, int[] pieces) {
+		byte[][] result = new byte[files.getConfig().getPeerCommonProps().getNumberPieces()][];
+
+		// computed on this thread, with the halves it forks going to the common pool
+		new HashRange(files, pieces, result, 0, pieces.length).invoke();
+		return result;
+	}
+
+	private static class HashRange extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final FileManager files;
+		private final int[] pieces;
+		private final byte[][] result;
+		private final int from;
+		private final int to;
+
+		HashRange(FileManager files, int[] pieces, byte[][] result, int from, int to) {
+			this.files = files;
+			this.pieces = pieces;
+			this.result = result;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > PIECES_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new HashRange(files, pieces, result, from, middle),
+						new HashRange(files, pieces, result, middle, to));
+				return;
+			}
+
+			byte[] buffer = new byte[files.getConfig().getPeerCommonProps().PieceSize];
+			MessageDigest digest = digests.get();
+			for (int k = from; k < to; k++) {
+				int i = pieces[k];
+				int length = files.getPieceLength(i);
+				try {
+					files.readPiece(i, buffer, length);
+				} catch (IOException e) {
+					e.printStackTrace();
+					result[i] = new byte[0]; // unreadable, never matches
+					continue;
+				}
+				digest.reset();
+				digest.update(buffer, 0, length);
+				result[i] = digest.digest();
+			}
+		}
+	}
+
+	private byte[][] load() {
+		if (!metadataFile.exists())
+			return null;
+
+		var props = config.getPeerCommonProps();
+		int numPieces = props.getNumberPieces();
+		try (BufferedReader reader = new BufferedReader(new FileReader(metadataFile))) {
+			String header = reader.readLine();
+			if (header == null || !header.strip().equals(props.FileSize + " " + props.PieceSize))
+				return null; // made for another file layout
+
+			HexFormat hex = HexFormat.of();
+			byte[][] loaded = new byte[numPieces][];
+			for (int i = 0; i < numPieces; i++) {
+				String line = reader.readLine();
+				if (line == null)
+					return null;
+				loaded[i] = hex.parseHex(line.strip());
+			}
+			return loaded;
+		} catch (IOException | IllegalArgumentException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// Written to a temporary file first so other peers never read half of it
+	private void store(byte[][] hashes) {
+		var props = config.getPeerCommonProps();
+		File temporary = new File(metadataFile.getPath() + "." + ProcessHandle.current().pid() + "."
+				+ Thread.currentThread().getId() + ".tmp");
+		try {
+			try (FileWriter writer = new FileWriter(temporary)) {
+				writer.write(props.FileSize + " " + props.PieceSize + "\n");
+				HexFormat hex = HexFormat.of();
+				for (byte[] hash : hashes)
+					writer.write(hex.formatHex(hash) + "\n");
+			}
+			Files.move(temporary.toPath(), metadataFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Could not write " + metadataFile);
+		}
+	}
+}
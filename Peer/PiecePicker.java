@@ -0,0 +1,271 @@
+package Peer;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.function.IntPredicate;
+
+/**
+ * Chooses which missing piece to request from a neighbor, shared by all
+ * connections. Per-piece availability (how many connected neighbors have it) is
+ * kept up to date from BITFIELD and HAVE messages and from disconnects.
+ *
+ * With the rarest policy the pieces nobody requested yet sit in a tree ordered
+ * by availability, then a random tie-break fixed per piece, so a pick walks up
+ * from the rarest pieces until it finds one the neighbor has. A neighbor that
+ * lacks the first {@value #MAX_WALK} of them has few pieces we want, so its
+ * pieces are scanned for the rarest instead. The random policy picks
+ * uniformly among every piece the neighbor could give us.
+ *
+ * Requests are marked through here too, moving the piece to a second tree of
+ * requested pieces until it arrives or is released. Once every missing piece
+ * is requested and no more than {@value #ENDGAME_PIECES} of them are still in
+ * flight (endgame) those may be requested again from other neighbors that have
+ * them. Entering endgame any earlier, with deep request windows, would
+ * duplicate most of the file's tail.
+ *
+ * Neighbors that sent a piece which failed verification are not asked for
+ * that piece again until it was downloaded from someone else.
+ */
+class PiecePicker {
+
+	public enum Policy {
+		RAREST,
+		RANDOM,
+	}
+
+	private static final int MAX_AVAILABILITY = 0xFFFF;
+	private static final int MAX_WALK = 64; // tree entries a pick looks at before scanning the neighbor's pieces
+	private static final int ENDGAME_PIECES = 8; // requested pieces left at most before they are requested again
+
+	private final Policy policy;
+	private final Bitfield mine;
+	private final Vector<Boolean> requested;
+	private final Random random = new Random();
+
+	private final int[] availability;
+	private final short[] tieBreak;
+	private final TreeSet<Long> wanted = new TreeSet<>(); // keys of pieces we don't have and nobody requested
+	private final TreeSet<Long> inFlight = new TreeSet<>(); // keys of pieces we don't have but requested
+	private final Bitfield taken; // pieces we have or requested, i.e. not in wanted
+
+	private final HashMap<Integer, BitSet> sources = new HashMap<>(); // piece -> neighbors that sent data for it
+	private final HashMap<Integer, BitSet> avoided = new HashMap<>(); // piece -> neighbors that sent bad data
+	private volatile int numCorrupt = 0;
+
+	public PiecePicker(Policy policy, Bitfield mine, Vector<Boolean> requested) {
+		this.policy = policy;
+		this.mine = mine;
+		this.requested = requested;
+
+		int numPieces = mine.getSize();
+		taken = new Bitfield(numPieces);
+		availability = new int[numPieces];
+		tieBreak = new short[numPieces];
+		for (int i = 0; i < numPieces; i++) {
+			tieBreak[i] = (short) random.nextInt(1 << 16);
+			if (mine.getBit(i) || requested.get(i))
+				taken.turnOnBit(i);
+			if (!mine.getBit(i))
+				(requested.get(i) ? inFlight : wanted).add(key(i));
+		}
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	// availability, then tie-break, then index, so the tree iterates rarest first
+	private long key(int pieceIndex) {
+		return ((long) availability[pieceIndex] << 48) | ((tieBreak[pieceIndex] & 0xFFFFL) << 32)
+				| (pieceIndex & 0xFFFFFFFFL);
+	}
+
+	private void adjust(int pieceIndex, int delta) {
+		boolean isWanted = wanted.remove(key(pieceIndex));
+		boolean isInFlight = !isWanted && inFlight.remove(key(pieceIndex));
+		availability[pieceIndex] = Math.max(0, Math.min(MAX_AVAILABILITY, availability[pieceIndex] + delta));
+		if (isWanted)
+			wanted.add(key(pieceIndex));
+		else if (isInFlight)
+			inFlight.add(key(pieceIndex));
+	}
+
+	// A neighbor's full bitfield became known
+	public synchronized void addBitfield(Bitfield theirs) {
+		for (int i = theirs.nextSetBit(0); i != -1; i = theirs.nextSetBit(i + 1))
+			adjust(i, 1);
+	}
+
+	// A neighbor's bitfield is about to be replaced, or the neighbor disconnected
+	public synchronized void removeBitfield(Bitfield theirs) {
+		for (int i = theirs.nextSetBit(0); i != -1; i = theirs.nextSetBit(i + 1))
+			adjust(i, -1);
+	}
+
+	public synchronized void addPiece(int pieceIndex) {
+		adjust(pieceIndex, 1);
+	}
+
+	public synchronized void onPieceComplete(int pieceIndex) {
+		if (!wanted.remove(key(pieceIndex)))
+			inFlight.remove(key(pieceIndex));
+		taken.turnOnBit(pieceIndex);
+		sources.remove(pieceIndex);
+		avoided.remove(pieceIndex);
+	}
+
+	public synchronized void noteSource(int pieceIndex, int neighborIndex) {
+		sources.computeIfAbsent(pieceIndex, i -> new BitSet()).set(neighborIndex);
+	}
+
+	// The piece failed verification: avoid whoever sent it and make it requestable again
+	public synchronized void onCorrupt(int pieceIndex) {
+		BitSet senders = sources.remove(pieceIndex);
+		if (senders != null) {
+			BitSet neighbors = avoided.computeIfAbsent(pieceIndex, i -> new BitSet());
+			neighbors.or(senders);
+			// blocks may have come from several neighbors; if that rules out every holder, retry them all
+			if (neighbors.cardinality() >= availability[pieceIndex])
+				avoided.remove(pieceIndex);
+		}
+		release(pieceIndex);
+		numCorrupt++;
+	}
+
+	// Changes whenever a piece failed verification, so idle connections know to request again
+	public int getNumCorrupt() {
+		return numCorrupt;
+	}
+
+	private boolean isAvoided(int pieceIndex, int neighborIndex) {
+		if (avoided.isEmpty())
+			return false;
+		BitSet neighbors = avoided.get(pieceIndex);
+		return neighbors != null && neighbors.get(neighborIndex);
+	}
+
+	public synchronized void markRequested(int pieceIndex) {
+		if (requested.get(pieceIndex))
+			return;
+		requested.set(pieceIndex, true);
+		taken.turnOnBit(pieceIndex);
+		if (wanted.remove(key(pieceIndex)))
+			inFlight.add(key(pieceIndex));
+	}
+
+	// Makes a piece requestable again, e.g. its request was dropped by a choke
+	public synchronized void release(int pieceIndex) {
+		if (!requested.get(pieceIndex) || mine.getBit(pieceIndex))
+			return;
+		requested.set(pieceIndex, false);
+		taken.turnOffBit(pieceIndex);
+		if (inFlight.remove(key(pieceIndex)))
+			wanted.add(key(pieceIndex)); // at its current availability
+	}
+
+	// Every missing piece has been requested from someone, and only a few are still on their way
+	public synchronized boolean isEndgame() {
+		return wanted.isEmpty() && inFlight.size() <= ENDGAME_PIECES && !mine.isFinished();
+	}
+
+	public synchronized int getAvailability(int pieceIndex) {
+		return availability[pieceIndex];
+	}
+
+	/**
+	 * Picks a piece that the neighbor has, we lack and nobody requested yet.
+	 *
+	 * @param theirs        The neighbor's bitfield.
+	 * @param neighborIndex The neighbor's index in the peer config.
+	 * @return The piece index, or -1 if there is none.
+	 */
+
+	public synchronized int pick(Bitfield theirs, int neighborIndex) {
+		if (mine.isFinished())
+			return -1;
+
+		if (policy == Policy.RANDOM)
+			return pickRandom(theirs, neighborIndex);
+
+		return pickRarest(wanted, theirs, neighborIndex, pieceIndex -> false);
+	}
+
+	/**
+	 * In endgame, picks a missing piece that the neighbor has and that is
+	 * already requested from someone else, rarest first.
+	 *
+	 * @param theirs        The neighbor's bitfield.
+	 * @param neighborIndex The neighbor's index in the peer config.
+	 * @param alreadyAsked  Whether the piece was already requested from this
+	 *                      neighbor.
+	 * @return The piece index, or -1 if there is none or we're not in endgame.
+	 */
+
+	public synchronized int pickEndgame(Bitfield theirs, int neighborIndex, IntPredicate alreadyAsked) {
+		if (!isEndgame())
+			return -1;
+
+		return pickRarest(inFlight, theirs, neighborIndex, alreadyAsked);
+	}
+
+	// The first piece of the tree the neighbor has, or past MAX_WALK entries one of the rarest by a scan
+	private int pickRarest(TreeSet<Long> pieces, Bitfield theirs, int neighborIndex, IntPredicate skip) {
+		// the neighbor has it, so it is available at least once
+		SortedSet<Long> available = pieces.tailSet(1L << 48);
+		int walked = 0;
+		for (long key : available) {
+			if (++walked > MAX_WALK)
+				return scanRarest(available.first(), pieces == inFlight, theirs, neighborIndex, skip);
+			int pieceIndex = (int) key;
+			if (theirs.getBit(pieceIndex) && !skip.test(pieceIndex) && !isAvoided(pieceIndex, neighborIndex))
+				return pieceIndex;
+		}
+		return -1;
+	}
+
+	/**
+	 * Goes word by word over the pieces the neighbor has that could be in the
+	 * tree, from a random one on, and stops at the first as rare as the rarest
+	 * in the tree, which is as good as the walk would have found.
+	 */
+
+	private int scanRarest(long firstKey, boolean inFlightOnly, Bitfield theirs, int neighborIndex, IntPredicate skip) {
+		Bitfield excluded = inFlightOnly ? mine : taken;
+		int rarest = (int) (firstKey >>> 48);
+		int from = random.nextInt(mine.getSize());
+		int chosen = -1;
+		long chosenKey = Long.MAX_VALUE;
+		for (int pass = 0; pass < 2; pass++) {
+			int to = pass == 0 ? mine.getSize() : from;
+			for (int i = excluded.nextInteresting(theirs, pass == 0 ? from : 0); i != -1 && i < to;
+					i = excluded.nextInteresting(theirs, i + 1)) {
+				long key = key(i);
+				if (key >= chosenKey || requested.get(i) != inFlightOnly || mine.getBit(i) || skip.test(i)
+						|| isAvoided(i, neighborIndex))
+					continue;
+				if (availability[i] == rarest)
+					return i;
+				chosen = i;
+				chosenKey = key;
+			}
+		}
+		return chosen;
+	}
+
+	// Uniform choice by reservoir sampling, without building a candidate list
+	private int pickRandom(Bitfield theirs, int neighborIndex) {
+		int chosen = -1;
+		int seen = 0;
+		for (int i = mine.nextInteresting(theirs, 0); i != -1; i = mine.nextInteresting(theirs, i + 1)) {
+			if (requested.get(i) || isAvoided(i, neighborIndex))
+				continue;
+			if (random.nextInt(++seen) == 0)
+				chosen = i;
+		}
+		return chosen;
+	}
+}
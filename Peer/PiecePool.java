@@ -0,0 +1,84 @@
+package Peer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Direct buffers of PieceSize bytes for pieces on their way from the network
+ * to the disk. Small buffers are carved out of slabs of up to a megabyte, and
+ * all of them are handed back by {@link Piece#release()}, so a steady download
+ * allocates nothing per piece once the pool is warm. At most maxIdle buffers
+ * are kept around; any beyond that are left to the garbage collector.
+ */
+class PiecePool {
+
+	private static final int SLAB_SIZE = 1 << 20;
+	private static final int MAX_SLAB_BUFFERS = 16;
+
+	private final int bufferSize;
+	private final int buffersPerSlab;
+	private final int maxIdle;
+	private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger numIdle = new AtomicInteger(0);
+
+	private final LongAdder acquired = new LongAdder();
+	private final LongAdder reused = new LongAdder();
+	private final LongAdder allocatedBytes = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	public PiecePool(int bufferSize, int maxIdle) {
+		this.bufferSize = bufferSize;
+		this.buffersPerSlab = Math.max(1, Math.min(SLAB_SIZE / bufferSize, MAX_SLAB_BUFFERS));
+		this.maxIdle = maxIdle;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	// An empty buffer of bufferSize bytes
+	public ByteBuffer acquire() {
+		acquired.increment();
+		ByteBuffer buffer = idle.poll();
+		if (buffer != null) {
+			numIdle.decrementAndGet();
+			reused.increment();
+			return buffer;
+		}
+
+		// one allocation for several buffers, the rest of them go idle
+		ByteBuffer slab = ByteBuffer.allocateDirect(buffersPerSlab * bufferSize);
+		allocatedBytes.add(slab.capacity());
+		for (int i = 1; i < buffersPerSlab; i++)
+			recycle(slab.slice(i * bufferSize, bufferSize));
+		return slab.slice(0, bufferSize);
+	}
+
+	public void recycle(ByteBuffer buffer) {
+		if (numIdle.incrementAndGet() > maxIdle) {
+			numIdle.decrementAndGet();
+			dropped.increment();
+			return;
+		}
+		idle.offer(buffer.clear());
+	}
+
+	public long getAcquired() {
+		return acquired.sum();
+	}
+
+	public long getReused() {
+		return reused.sum();
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes.sum();
+	}
+
+	public String toString() {
+		return String.format("Piece buffers: %d acquired, %d reused, %d dropped, %.1f MB allocated",
+				getAcquired(), getReused(), dropped.sum(), getAllocatedBytes() / 1e6);
+	}
+}
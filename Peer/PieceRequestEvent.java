@@ -0,0 +1,44 @@
+package Peer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("p2p.PieceRequest")
+@Label("Piece Request")
+@Category({ "P2P", "Pieces" })
+@StackTrace(false)
+class PieceRequestEvent extends Event {
+
+	@Label("Neighbor")
+	int neighbor;
+
+	@Label("Piece")
+	int piece;
+
+	@Label("Offset")
+	@DataAmount
+	int offset;
+
+	@Label("Length")
+	@DataAmount
+	int length;
+
+	@Label("Endgame")
+	boolean endgame;
+
+	static void commit(int neighbor, int piece, int offset, int length, boolean endgame) {
+		PieceRequestEvent event = new PieceRequestEvent();
+		if (!event.isEnabled())
+			return;
+		event.neighbor = neighbor;
+		event.piece = piece;
+		event.offset = offset;
+		event.length = length;
+		event.endgame = endgame;
+		event.commit();
+	}
+}
@@ -0,0 +1,98 @@
+package Peer;
+
+import java.io.File;
+
+import Logging.PeerLogger;
+
+/**
+ * Upload and download limits for the whole peer and for each neighbor, from
+ * MaxUploadRate, MaxDownloadRate, MaxNeighborUploadRate and
+ * MaxNeighborDownloadRate in Common.cfg (bytes per second, 0 for unlimited).
+ * Editing those while the peer runs takes effect within a choking interval.
+ *
+ * Uploads over the limit are queued by the connection and downloads are held
+ * back by not sending further requests. Either way the connection asks to be
+ * woken once the bytes fit, via the {@link SwarmHost}'s scheduler.
+ */
+class RateLimits {
+
+	private final TokenBucket upload;
+	private final TokenBucket download;
+	private final TokenBucket[] neighborUpload;
+	private final TokenBucket[] neighborDownload;
+
+	private final File configFile;
+	private long configModified;
+	private final PeerLogger logger;
+
+	public RateLimits(PeerConfig config, int numNeighbors, PeerLogger logger) {
+		this.logger = logger;
+		int pieceSize = config.getPeerCommonProps().PieceSize;
+		upload = new TokenBucket(pieceSize);
+		download = new TokenBucket(pieceSize);
+		neighborUpload = new TokenBucket[numNeighbors];
+		neighborDownload = new TokenBucket[numNeighbors];
+		for (int i = 0; i < numNeighbors; i++) {
+			neighborUpload[i] = new TokenBucket(pieceSize);
+			neighborDownload[i] = new TokenBucket(pieceSize);
+		}
+
+		configFile = config.file(PeerConfig.PeerPropertiesFile);
+		configModified = configFile.lastModified();
+		apply(config.getPeerCommonProps());
+	}
+
+	public void apply(PeerCommonProperties props) {
+		upload.setRate(props.MaxUploadRate);
+		download.setRate(props.MaxDownloadRate);
+		for (int i = 0; i < neighborUpload.length; i++) {
+			neighborUpload[i].setRate(props.MaxNeighborUploadRate);
+			neighborDownload[i].setRate(props.MaxNeighborDownloadRate);
+		}
+	}
+
+	// Picks up rate changes made to Common.cfg since the last call
+	public void reloadIfChanged() {
+		long modified = configFile.lastModified();
+		if (modified == configModified)
+			return;
+		configModified = modified;
+
+		PeerCommonProperties props = PeerConfig.ReadPeerProperties(configFile.getPath());
+		apply(props);
+		if (logger.isDebugEnabled())
+			logger.DebugLog(String.format("Rate limits now up %d, down %d, per neighbor up %d, down %d bytes/s",
+					props.MaxUploadRate, props.MaxDownloadRate, props.MaxNeighborUploadRate,
+					props.MaxNeighborDownloadRate));
+	}
+
+	/**
+	 * @return 0 if the bytes may be sent to the neighbor now, otherwise the
+	 *         nanoseconds to wait before trying again.
+	 */
+
+	public long acquireUpload(int neighborIndex, int bytes) {
+		return acquire(neighborUpload[neighborIndex], upload, bytes);
+	}
+
+	/**
+	 * @return 0 if the bytes may be requested from the neighbor now, otherwise
+	 *         the nanoseconds to wait before trying again.
+	 */
+
+	public long acquireDownload(int neighborIndex, int bytes) {
+		return acquire(neighborDownload[neighborIndex], download, bytes);
+	}
+
+	private static long acquire(TokenBucket neighbor, TokenBucket global, int bytes) {
+		long now = System.nanoTime();
+		long wait = neighbor.tryAcquire(bytes, now);
+		if (wait > 0)
+			return wait;
+
+		wait = global.tryAcquire(bytes, now);
+		if (wait > 0)
+			neighbor.refund(bytes); // both or neither
+		return wait;
+	}
+}
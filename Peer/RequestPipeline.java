@@ -0,0 +1,135 @@
+package Peer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * Requests (for whole pieces, or blocks in block mode) in flight to a single
+ * neighbor. The window is either fixed by
+ * OutstandingRequests in Common.cfg or, when that is 0, sized to cover the
+ * measured bandwidth-delay product of the link so it never sits idle waiting
+ * on a round trip.
+ *
+ * Only used from the owning connection's session, which serializes access.
+ * The number of requests in flight and their latencies are published to the
+ * neighbor's metrics as they change.
+ */
+class RequestPipeline {
+
+	static final int MAX_ADAPTIVE_WINDOW = 64;
+	private static final double RATE_SMOOTHING = 0.2;
+	private static final double LATENCY_DECAY = 1.05; // lets the minimum drift up when the path gets slower
+
+	private final int fixedWindow;
+	private final int unitSize; // bytes per request
+	private final NeighborMetrics metrics;
+
+	private final LinkedHashMap<Integer, Long> inFlight = new LinkedHashMap<>(); // piece or block id -> sent at
+	private int window = 2; // grows from here as soon as rate samples come in
+
+	private double bytesPerNano = 0;
+	private double minLatencyNanos = Double.MAX_VALUE;
+	private long lastArrival = -1;
+
+	public RequestPipeline(int unitSize, int fixedWindow, NeighborMetrics metrics) {
+		this.fixedWindow = fixedWindow;
+		this.unitSize = unitSize;
+		this.metrics = metrics;
+		if (fixedWindow > 0)
+			window = fixedWindow;
+	}
+
+	public boolean hasCapacity() {
+		return inFlight.size() < window;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	public int size() {
+		return inFlight.size();
+	}
+
+	public boolean isRequested(int requestId) {
+		return inFlight.containsKey(requestId);
+	}
+
+	public void onRequested(int requestId, long now) {
+		inFlight.put(requestId, now);
+		metrics.requestsInFlight = inFlight.size();
+	}
+
+	/**
+	 * Retires a request once its data arrived and updates the window.
+	 *
+	 * @return Whether it had been requested from this neighbor.
+	 */
+
+	public boolean onReceived(int requestId, int bytes, long now) {
+		Long sentAt = inFlight.remove(requestId);
+		if (sentAt == null)
+			return false;
+		metrics.requestsInFlight = inFlight.size();
+		metrics.onRequestCompleted(now - sentAt);
+
+		if (lastArrival >= 0 && now > lastArrival) {
+			double sample = bytes / (double) (now - lastArrival);
+			bytesPerNano = bytesPerNano == 0 ? sample
+					: RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * bytesPerNano;
+		}
+		lastArrival = now;
+		minLatencyNanos = Math.min(minLatencyNanos * LATENCY_DECAY, now - sentAt);
+
+		if (fixedWindow <= 0 && bytesPerNano > 0) {
+			double bandwidthDelay = bytesPerNano * minLatencyNanos;
+			window = (int) Math.max(1, Math.min(MAX_ADAPTIVE_WINDOW, Math.ceil(2 * bandwidthDelay / unitSize)));
+		}
+		return true;
+	}
+
+	/**
+	 * Drops outstanding requests matching the filter, e.g. ones another
+	 * neighbor already delivered, or ones sent before a deadline.
+	 *
+	 * @return The dropped indices.
+	 */
+
+	public Integer[] cancelIf(IntPredicate filter) {
+		ArrayList<Integer> cancelled = new ArrayList<>();
+		var entries = inFlight.keySet().iterator();
+		while (entries.hasNext()) {
+			int requestId = entries.next();
+			if (filter.test(requestId)) {
+				entries.remove();
+				cancelled.add(requestId);
+			}
+		}
+		metrics.requestsInFlight = inFlight.size();
+		return cancelled.toArray(new Integer[0]);
+	}
+
+	/**
+	 * Drops requests sent before the deadline, but only if nothing arrived
+	 * since either: a neighbor still delivering is just working through them
+	 * in order, and would send them anyway.
+	 *
+	 * @return The dropped indices.
+	 */
+
+	public Integer[] cancelStalled(long deadline) {
+		if (lastArrival >= deadline)
+			return new Integer[0];
+		return cancelIf(requestId -> inFlight.get(requestId) < deadline);
+	}
+
+	// Drops every outstanding request, e.g. when choked, returning their indices
+	public Integer[] cancelAll() {
+		Integer[] cancelled = inFlight.keySet().toArray(new Integer[0]);
+		inFlight.clear();
+		metrics.requestsInFlight = 0;
+		lastArrival = -1; // don't count the choked period as slow transfer
+		return cancelled;
+	}
+}
@@ -0,0 +1,7 @@
+package Peer;
+
+public enum RunnerMode {
+    THREAD, // one busy-polling platform thread per neighbor
+    NIO, // neighbors multiplexed over a few selector event loops
+    VIRTUAL, // blocking reader and parked sender per neighbor on virtual threads (JDK 21+)
+}
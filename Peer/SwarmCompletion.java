@@ -0,0 +1,46 @@
+package Peer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts how many peers of the swarm (us included) have the whole file. Each
+ * tracked bitfield reports when it crosses into or out of finished, so the
+ * count is kept exact without scanning anything, and the peer is told to exit
+ * the moment it reaches the swarm size.
+ */
+class SwarmCompletion implements Bitfield.FinishListener {
+
+	private final Peer peer;
+	private final int numPeers;
+	private final AtomicInteger finishedPeers = new AtomicInteger(0);
+	private volatile boolean complete = false;
+
+	public SwarmCompletion(Peer peer, int numPeers) {
+		this.peer = peer;
+		this.numPeers = numPeers;
+	}
+
+	// Starts counting a peer's bitfield, including its current state
+	public void track(Bitfield bitfield) {
+		bitfield.setFinishListener(this);
+		if (bitfield.isFinished())
+			onFinishedChanged(true);
+	}
+
+	public void onFinishedChanged(boolean finished) {
+		if (finishedPeers.addAndGet(finished ? 1 : -1) < numPeers || complete)
+			return;
+
+		complete = true;
+		peer.forceExit = true;
+		peer.notifyStateListeners(); // wake connections so they wind down now
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public int getFinishedPeers() {
+		return finishedPeers.get();
+	}
+}
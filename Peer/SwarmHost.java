@@ -0,0 +1,104 @@
+package Peer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by every peer in the process, whichever swarm it is in:
+ * the selector loops NIO connections are spread across, a pool for disk writes,
+ * prefetches and checkpoints, and a scheduler for choking rounds and rate
+ * limit wakeups. Running more swarms adds peers, not threads.
+ *
+ * Every swarm's timers share the scheduler, so its tasks must never wait on
+ * the disk or the network; they hand such work to the disk pool instead.
+ *
+ * The event loops are only started once a peer runs in NIO mode, and the
+ * metrics HTTP endpoints once a peer has a MetricsPort.
+ */
+public class SwarmHost implements AutoCloseable {
+
+	public static final int DEFAULT_DISK_THREADS = 2;
+	public static final int DEFAULT_SCHEDULER_THREADS = 1;
+
+	private final int numLoops;
+	private final ExecutorService diskPool;
+	private final ScheduledThreadPoolExecutor scheduler;
+	private EventLoopGroup loops;
+	private final HashMap<Integer, MetricsEndpoint> metricsEndpoints = new HashMap<>(); // by port
+
+	public SwarmHost() {
+		this(EventLoopGroup.DEFAULT_LOOPS, DEFAULT_DISK_THREADS, DEFAULT_SCHEDULER_THREADS);
+	}
+
+	public SwarmHost(int numLoops, int diskThreads, int schedulerThreads) {
+		this.numLoops = numLoops;
+		this.diskPool = Executors.newFixedThreadPool(diskThreads, daemonThreads("swarm-disk-"));
+		this.scheduler = new ScheduledThreadPoolExecutor(schedulerThreads, daemonThreads("swarm-scheduler-"));
+		this.scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	private static ThreadFactory daemonThreads(String prefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	synchronized EventLoopGroup getLoops() throws IOException {
+		if (loops == null) {
+			loops = new EventLoopGroup(numLoops);
+			loops.start();
+		}
+		return loops;
+	}
+
+	public Executor getDiskPool() {
+		return diskPool;
+	}
+
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	// Serves the peer's metrics on the port, along with those of any other swarm's peer already there
+	synchronized void addMetrics(int port, Metrics metrics) throws IOException {
+		MetricsEndpoint endpoint = metricsEndpoints.get(port);
+		if (endpoint == null) {
+			endpoint = new MetricsEndpoint(port);
+			metricsEndpoints.put(port, endpoint);
+		}
+		endpoint.add(metrics);
+	}
+
+	synchronized void removeMetrics(int port, Metrics metrics) {
+		MetricsEndpoint endpoint = metricsEndpoints.get(port);
+		if (endpoint != null && endpoint.remove(metrics)) {
+			endpoint.stop();
+			metricsEndpoints.remove(port);
+		}
+	}
+
+	/**
+	 * Stops the shared threads, once every peer using them has finished. Queued
+	 * disk writes are still carried out.
+	 */
+
+	public synchronized void close() {
+		if (loops != null)
+			loops.stop();
+		for (MetricsEndpoint endpoint : metricsEndpoints.values())
+			endpoint.stop();
+		metricsEndpoints.clear();
+		scheduler.shutdownNow();
+		diskPool.shutdown();
+	}
+}
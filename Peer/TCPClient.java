@@ -1,26 +1,41 @@
 package Peer;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Vector;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import Messaging.FrameChannel;
 
 public class TCPClient {
 
-    volatile Vector<Socket> sockets = new Vector<>();
-    volatile Vector<ServerSocket> serverSockets = new Vector<>();
-    volatile Vector<ObjectInputStream> inputStreams = new Vector<>();
-    volatile Vector<ObjectOutputStream> outputStreams = new Vector<>();
+    private static final long CONNECT_RETRY_MILLIS = 10;
+
+    volatile Vector<SocketChannel> sockets = new Vector<>();
+    volatile Vector<ServerSocketChannel> serverSockets = new Vector<>();
 
     volatile Peer peer;
+    final RunnerMode mode;
+    private final Vector<ScheduledFuture<?>> timers = new Vector<>(); // on the host's scheduler
+
+    private interface ConnectionHandler {
+        void onConnected(int neighborIndex, SocketChannel channel) throws IOException;
+    }
 
     public TCPClient(Peer peer) {
+        this(peer, RunnerMode.THREAD);
+    }
+
+    public TCPClient(Peer peer, RunnerMode mode) {
         this.peer = peer;
+        this.mode = mode;
     }
 
     private void close() {
@@ -43,111 +58,176 @@ public class TCPClient {
     public void run() {
         this.startUnchokingTimerTask();
         this.startOptimisticUnchokingTimerTask();
+        this.startCheckpointTimerTask();
+        peer.metrics.start();
+        final Thread shutdownHook = new Thread(() -> { // e.g. killed with Ctrl-C
+            peer.saveCheckpoint();
+            peer.logger.close();
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
 
         try {
-            final Vector<Thread> runners = new Vector<>();
-            // initiate connection with all previous peers
-            final var neighbors = PeerConfig.getNeighborhoodInfo();
-            final var selfInfo = neighbors.get(peer.peerIndex);
+            if (mode == RunnerMode.NIO)
+                runEventLoops();
+            else
+                runThreads();
 
-            // Setting up connections to already running peers
-            for (int i = 0; i < peer.peerIndex; i++) {
-                final var neighbor = neighbors.get(i);
-                boolean establishedConnection = false;
-                while (!establishedConnection) {
-                    try {
-                        Socket onlinePeerSocket = new Socket(neighbor.getIpAddress(), selfInfo.port);
-                        onlinePeerSocket.setKeepAlive(true);
-
-                        ObjectInputStream in = new ObjectInputStream(onlinePeerSocket.getInputStream());
-                        ObjectOutputStream out = new ObjectOutputStream(onlinePeerSocket.getOutputStream());
-                        out.flush(); // clear any output when starting
-
-                        sockets.add(onlinePeerSocket);
-
-                        PeerProcessRunner runner = new PeerProcessRunner(peer, i, onlinePeerSocket, in, out);
-                        Thread runner_thread = new Thread(runner);
-                        runners.add(runner_thread);
-                        runner_thread.start();
-
-                        establishedConnection = true;
-                        peer.logger.ConnectToLog(neighbor.ID);
-                    } catch (ConnectException e) {
-                        // ok
-                    } catch (Exception e) {
-                        System.out.println("Exception while trying to establish connection.");
-                        e.printStackTrace();
-                    }
-                }
+            peer.logger.DebugLog("All peers have file. Exiting.");
+            if (peer.logger.isDebugEnabled()) {
+                if (peer.fileHandler.getCache() != null)
+                    peer.logger.DebugLog(peer.fileHandler.getCache().toString());
+                peer.logger.DebugLog(peer.buffers.toString());
+                peer.logger.DebugLog(peer.allocations.toString());
             }
+        } catch (Exception e) {
+            // any unexpected failure should close existing connections
+            e.printStackTrace();
+        } finally {
+            for (var timer : timers)
+                timer.cancel(false);
+            close();
+            peer.saveCheckpoint();
+            peer.metrics.close();
+            peer.logger.close();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // already shutting down, the hook runs anyway
+            }
+        }
+    }
 
-            // Setting up connections to not yet running peers
-            for (int i = peer.peerIndex + 1; i < neighbors.size(); i++) {
+    // Connects to every neighbor, handing each connection off as soon as it is up
+    private void establishConnections(ConnectionHandler handler) {
+        // initiate connection with all previous peers
+        final var neighbors = peer.config.getNeighborhoodInfo();
+        final var selfInfo = neighbors.get(peer.peerIndex);
+
+        // Setting up connections to already running peers
+        for (int i = 0; i < peer.peerIndex; i++) {
+            final var neighbor = neighbors.get(i);
+            boolean establishedConnection = false;
+            while (!establishedConnection) {
                 try {
-                    final var neighbor = neighbors.get(i);
-                    
-                    ServerSocket offlinePeerSocket = new ServerSocket(neighbor.port, Math.max(neighbors.size(), 100),
-                            InetAddress.getByName(selfInfo.hostname));
-                    Socket interceptingSocket = offlinePeerSocket.accept();
-                    interceptingSocket.setKeepAlive(true);
-
-                    // start output before input, otherwise it deadlocks
-                    ObjectOutputStream out = new ObjectOutputStream(interceptingSocket.getOutputStream());
-                    out.flush(); // clear any output when starting
-                    ObjectInputStream in = new ObjectInputStream(interceptingSocket.getInputStream());
-
-                    serverSockets.add(offlinePeerSocket);
-
-                    PeerProcessRunner runner = new PeerProcessRunner(peer, i, interceptingSocket, in, out);
-                    Thread runner_thread = new Thread(runner);
-                    runners.add(runner_thread);
-                    runner_thread.start();
-
-                    peer.logger.ConnectFromLog(neighbor.ID);
+                    SocketChannel onlinePeerSocket = SocketChannel
+                            .open(new InetSocketAddress(neighbor.getIpAddress(), selfInfo.port));
+                    onlinePeerSocket.socket().setKeepAlive(true);
+                    sockets.add(onlinePeerSocket);
+
+                    handler.onConnected(i, onlinePeerSocket);
+
+                    establishedConnection = true;
+                    peer.logger.ConnectToLog(neighbor.ID);
+                } catch (ConnectException e) {
+                    // not listening yet, try again shortly
+                    try {
+                        Thread.sleep(CONNECT_RETRY_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
                 } catch (Exception e) {
-                    System.out.println("Exception while trying to create socket to unconnected peers");
+                    System.out.println("Exception while trying to establish connection.");
                     e.printStackTrace();
                 }
             }
+        }
 
-            for (var runner_thread : runners)
-                runner_thread.join();
+        // Setting up connections to not yet running peers
+        for (int i = peer.peerIndex + 1; i < neighbors.size(); i++) {
+            try {
+                final var neighbor = neighbors.get(i);
 
-            peer.logger.DebugLog("All peers have file. Exiting.");
-        } catch (Exception e) {
-            // any unexpected failure should close existing connections
-            e.printStackTrace();
-            close();
+                ServerSocketChannel offlinePeerSocket = ServerSocketChannel.open();
+                offlinePeerSocket.bind(new InetSocketAddress(InetAddress.getByName(selfInfo.hostname), neighbor.port),
+                        Math.max(neighbors.size(), 100));
+                serverSockets.add(offlinePeerSocket);
+
+                SocketChannel interceptingSocket = offlinePeerSocket.accept();
+                interceptingSocket.socket().setKeepAlive(true);
+                sockets.add(interceptingSocket);
+
+                handler.onConnected(i, interceptingSocket);
+
+                peer.logger.ConnectFromLog(neighbor.ID);
+            } catch (Exception e) {
+                System.out.println("Exception while trying to create socket to unconnected peers");
+                e.printStackTrace();
+            }
         }
     }
 
+    private void runThreads() throws InterruptedException {
+        final ThreadFactory threadFactory = mode == RunnerMode.VIRTUAL
+                ? VirtualThreads.factory("peer-" + peer.peerId + "-neighbor-")
+                : Thread::new;
+        final Vector<Thread> runners = new Vector<>();
+
+        establishConnections((neighborIndex, socket) -> {
+            FrameChannel channel = new FrameChannel(socket);
+            Runnable runner = mode == RunnerMode.VIRTUAL
+                    ? new VirtualThreadRunner(peer, neighborIndex, channel, threadFactory)
+                    : new PeerProcessRunner(peer, neighborIndex, channel);
+            Thread runner_thread = threadFactory.newThread(runner);
+            runners.add(runner_thread);
+            runner_thread.start();
+        });
+
+        for (var runner_thread : runners)
+            runner_thread.join();
+    }
+
+    // Hands the connections to the host's event loops and waits until they are all closed
+    private void runEventLoops() throws IOException, InterruptedException {
+        final EventLoopGroup loops = peer.host.getLoops();
+        final Semaphore closed = new Semaphore(0);
+        loops.attach(peer);
+
+        final Vector<NioConnection> connections = new Vector<>();
+        establishConnections((neighborIndex, socket) -> {
+            NioConnection connection = new NioConnection(peer, neighborIndex, socket, closed::release);
+            connections.add(connection);
+            loops.next().register(connection);
+        });
+
+        closed.acquire(connections.size());
+    }
+
     // NOTE: Not sure if this is where the timer functions should live but they are
     // more related to the client/runner than say the peer itself
     public void startUnchokingTimerTask() {
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            public void run() {
-                if (peer.shouldForceExit()) {
-                    timer.cancel();
-                    return;
-                }
-                peer.onChokingTimeout();
+        schedule(() -> {
+            peer.limits.reloadIfChanged();
+            peer.allocations.sample();
+            peer.onChokingTimeout();
+            if (peer.logger.isDebugEnabled())
                 discoverWhosNotDone();
-            }
-        }, 0, PeerConfig.getPeerCommonProps().UnchokingInterval * 1000);
+        }, 0, peer.config.getPeerCommonProps().UnchokingInterval);
     }
 
     public void startOptimisticUnchokingTimerTask() {
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            public void run() {
-                if (peer.shouldForceExit()) {
-                    timer.cancel();
-                    return;
-                }
-                peer.onOptimisticUnchokingTimeout();
+        schedule(peer::onOptimisticUnchokingTimeout, 0, peer.config.getPeerCommonProps().OptimisticUnchokingInterval);
+    }
+
+    public void startCheckpointTimerTask() {
+        final int interval = peer.config.getPeerCommonProps().CheckpointInterval;
+        if (interval <= 0)
+            return;
+
+        schedule(peer::saveCheckpointLater, interval, interval); // the scheduler is shared, so don't wait on the disk
+    }
+
+    // Runs the task every so many seconds until the peer exits
+    private void schedule(Runnable task, int delaySeconds, int intervalSeconds) {
+        timers.add(peer.host.getScheduler().scheduleWithFixedDelay(() -> {
+            if (peer.shouldForceExit())
+                return;
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace(); // an exception would cancel the task
             }
-        }, 0, PeerConfig.getPeerCommonProps().OptimisticUnchokingInterval * 1000);
+        }, delaySeconds, intervalSeconds, TimeUnit.SECONDS));
     }
 
     private void discoverWhosNotDone() {
@@ -157,7 +237,7 @@ public class TCPClient {
             peer.logger.DebugLog("Peer " + peer.peerId + " BITFIELD: " + peer.bitfield.getText());
         }
 
-        for (var neighbor : PeerConfig.getNeighborhoodInfo()) {
+        for (var neighbor : peer.config.getNeighborhoodInfo()) {
             if (neighbor.ID == peer.peerId)
                 continue;
 
@@ -0,0 +1,72 @@
+package Peer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte rate limit kept as a single timestamp: the time at which everything
+ * admitted so far will have drained at the configured rate. Admitting a
+ * message pushes it forward by the message's cost; the message fits while that
+ * stays within the burst allowance of now. So checking costs one CAS per
+ * message, whatever its size, and nothing ever sleeps: callers get back how
+ * long to wait and retry later.
+ *
+ * A rate of 0 means unlimited, and the rate can be changed at any time.
+ */
+public class TokenBucket {
+
+	private static final double BURST_SECONDS = 0.25; // how far ahead of the rate a burst may run
+
+	private final AtomicLong drainedAt = new AtomicLong(System.nanoTime());
+	private final int minBurstBytes; // at least one whole message must fit
+	private volatile double nanosPerByte = 0;
+	private volatile long burstNanos = 0;
+
+	public TokenBucket(int minBurstBytes) {
+		this.minBurstBytes = minBurstBytes;
+	}
+
+	public void setRate(long bytesPerSecond) {
+		if (bytesPerSecond <= 0) {
+			nanosPerByte = 0;
+			return;
+		}
+		double perByte = 1e9 / bytesPerSecond;
+		burstNanos = (long) (Math.max(bytesPerSecond * BURST_SECONDS, minBurstBytes) * perByte);
+		nanosPerByte = perByte;
+	}
+
+	public boolean isLimited() {
+		return nanosPerByte > 0;
+	}
+
+	/**
+	 * Takes the bytes out of the bucket if they fit.
+	 *
+	 * @return 0 if admitted, otherwise how many nanoseconds until they would
+	 *         be (nothing is taken then).
+	 */
+
+	public long tryAcquire(int bytes, long now) {
+		double perByte = nanosPerByte;
+		if (perByte == 0)
+			return 0;
+
+		long cost = (long) (bytes * perByte);
+		while (true) {
+			long current = drainedAt.get();
+			long next = Math.max(current, now) + cost;
+			long excess = next - now - burstNanos;
+			if (excess > 0)
+				return excess;
+			if (drainedAt.compareAndSet(current, next))
+				return 0;
+		}
+	}
+
+	// Gives back bytes acquired for something that was not sent after all
+	public void refund(int bytes) {
+		double perByte = nanosPerByte;
+		if (perByte > 0)
+			drainedAt.addAndGet(-(long) (bytes * perByte));
+	}
+}
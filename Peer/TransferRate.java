@@ -0,0 +1,51 @@
+package Peer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bytes moved in one direction with a single neighbor. Connections only add
+ * to a striped counter, so recording never blocks; the choking timer folds
+ * the bytes since its last round into an exponentially weighted moving
+ * average, which is what preferred neighbors are chosen by.
+ */
+public class TransferRate {
+
+	private static final double TIME_CONSTANT_SECONDS = 10; // how long a burst keeps counting
+
+	private final LongAdder pending = new LongAdder();
+	private volatile long totalBytes = 0;
+	private volatile double bytesPerSecond = 0;
+	private volatile long lastTransfer = System.nanoTime(); // counts from creation, so new peers aren't snubbed
+	private long lastSample = System.nanoTime(); // only touched by the sampling thread
+
+	public void add(long bytes) {
+		pending.add(bytes);
+		lastTransfer = System.nanoTime();
+	}
+
+	// Folds in the bytes since the previous call; called once per choking round
+	public void sample(long now) {
+		double seconds = (now - lastSample) / 1e9;
+		if (seconds <= 0)
+			return;
+		lastSample = now;
+
+		long bytes = pending.sumThenReset();
+		totalBytes += bytes;
+		double alpha = 1 - Math.exp(-seconds / TIME_CONSTANT_SECONDS);
+		bytesPerSecond += alpha * (bytes / seconds - bytesPerSecond);
+	}
+
+	public double getRate() {
+		return bytesPerSecond;
+	}
+
+	public long getTotalBytes() {
+		return totalBytes + pending.sum();
+	}
+
+	// Whether nothing moved in the given window
+	public boolean isIdleFor(long nanos, long now) {
+		return now - lastTransfer > nanos;
+	}
+}
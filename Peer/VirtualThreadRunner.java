@@ -0,0 +1,121 @@
+package Peer;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import Messaging.FrameChannel;
+import Messaging.Handshake;
+
+/**
+ * Blocking counterpart of {@link PeerProcessRunner} meant to run on virtual
+ * threads. The reader blocks on whole frames instead of polling the socket,
+ * and the timeout driven work from
+ * {@link NeighborSession#lifetimeChecks()} runs on a separate sender that
+ * parks until the peer signals a state change. The sender is the only thread
+ * writing to the socket, pieces included; the reader queues its frames for it.
+ */
+class VirtualThreadRunner implements Runnable {
+
+	private static final long SENDER_PARK_MS = 1000; // safety net in case a signal is missed
+
+	private final Peer peer;
+	private final int neighborIndex;
+
+	private final FrameChannel channel;
+
+	private final FrameQueue outbound = new FrameQueue(this::signal);
+	private final NeighborSession session;
+	private final ThreadFactory threadFactory;
+	private final Semaphore stateChanged = new Semaphore(0);
+
+	public VirtualThreadRunner(Peer peer, int neighborIndex, FrameChannel channel, ThreadFactory threadFactory) {
+		this.peer = peer;
+		this.neighborIndex = neighborIndex;
+		this.channel = channel;
+		this.threadFactory = threadFactory;
+		this.session = new NeighborSession(peer, neighborIndex, outbound);
+		this.session.setWakeup(this::signal);
+	}
+
+	private void signal() {
+		if (stateChanged.availablePermits() == 0)
+			stateChanged.release();
+	}
+
+	// Writes out what the session queued, then every request the upload limit lets through
+	private void flush() throws IOException {
+		outbound.drainTo(channel);
+		while (session.serveUpload())
+			outbound.drainTo(channel); // the piece, and whatever the reader queued meanwhile
+	}
+
+	private void sendLoop() {
+		try {
+			while (!peer.shouldForceExit()) {
+				stateChanged.tryAcquire(SENDER_PARK_MS, TimeUnit.MILLISECONDS);
+				stateChanged.drainPermits();
+				session.lifetimeChecks();
+				flush();
+			}
+
+			// keep announcing for 5 secs in case any messages need to be retransmitted, e.g. the HAVE
+			// for our own last piece, which can be appended after the exit flag went up
+			long exitDeadline = System.currentTimeMillis() + 5000;
+			for (long left = 5000; left > 0; left = exitDeadline - System.currentTimeMillis()) {
+				session.lifetimeChecks();
+				flush();
+				stateChanged.tryAcquire(left, TimeUnit.MILLISECONDS);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				channel.close(); // unblocks the reader
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			outbound.clear();
+		}
+	}
+
+	public void run() {
+		Thread sender = null;
+		try {
+			var neighbor = peer.config.getNeighborhoodInfo().get(neighborIndex);
+
+			Handshake.send(channel, peer.peerId);
+			int peerId = Handshake.read(channel);
+			if (peerId != neighbor.ID) {
+				peer.logger.DebugLog("Failed handshake: expected Peer " + neighbor.ID + ", got " + peerId);
+				channel.close();
+				return;
+			}
+
+			session.onHandshakeComplete();
+
+			peer.addStateListener(this::signal);
+			sender = threadFactory.newThread(this::sendLoop);
+			sender.start();
+
+			while (channel.channel().isOpen()) {
+				channel.readFrames(session); // parks until a whole frame arrives
+				signal(); // HAVE / BITFIELD may have finished the swarm
+			}
+		} catch (Exception e) {
+			if (!peer.shouldForceExit())
+				e.printStackTrace();
+		} finally {
+			session.onClose();
+			try {
+				if (sender != null)
+					sender.join();
+				else
+					channel.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
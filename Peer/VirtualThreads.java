@@ -0,0 +1,34 @@
+package Peer;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Looks up the JDK 21 virtual thread builder reflectively so the project still
+ * builds and runs on older JDKs, where it falls back to platform threads.
+ */
+class VirtualThreads {
+
+    public static boolean isSupported() {
+        return lookupFactory("probe-") != null;
+    }
+
+    public static ThreadFactory factory(String namePrefix) {
+        ThreadFactory factory = lookupFactory(namePrefix);
+        if (factory != null)
+            return factory;
+
+        System.out.println("Virtual threads are not available on this JDK, falling back to platform threads.");
+        return runnable -> new Thread(runnable, namePrefix + "platform");
+    }
+
+    private static ThreadFactory lookupFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package Messaging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding frames through {@link FrameCodec} and
+ * {@link FrameDecoder}, per message type. Control messages (CHOKE, HAVE, a
+ * block REQUEST) are done in batches of {@value #BATCH} as they arrive in a
+ * socket read; BITFIELD and PIECE frames carry a payload of the given size.
+ * The old {@link Message#encode()} is there to compare against.
+ *
+ * Decoding includes copying the frames into the decoder's buffer, the way a
+ * socket read would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    private static final int BATCH = 64;
+
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BATCH * FrameCodec.frameLength(12) + 64);
+    private final FrameDecoder decoder = new FrameDecoder();
+    private ByteBuffer chokes;
+    private ByteBuffer haves;
+    private ByteBuffer requests;
+
+    @State(Scope.Thread)
+    public static class Payload {
+
+        @Param({ "64", "1024", "16384", "262144" })
+        public int payloadSize;
+
+        byte[] payload;
+        ByteBuffer out;
+        FrameDecoder decoder;
+        ByteBuffer bitfieldFrame;
+        ByteBuffer pieceFrame;
+
+        @Setup
+        public void setup() {
+            payload = new byte[payloadSize];
+            new Random(1).nextBytes(payload);
+            out = ByteBuffer.allocateDirect(FrameCodec.frameLength(payloadSize));
+            decoder = new FrameDecoder(out.capacity());
+            bitfieldFrame = frame(MessageType.BITFIELD, payload);
+            pieceFrame = frame(MessageType.PIECE, payload);
+        }
+
+        private static ByteBuffer frame(MessageType type, byte[] payload) {
+            ByteBuffer frame = ByteBuffer.allocateDirect(FrameCodec.frameLength(payload.length));
+            FrameCodec.encode(frame, type, payload);
+            return frame.flip();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        chokes = batch(i -> FrameCodec.encode(out, MessageType.CHOKE));
+        haves = batch(i -> FrameCodec.encode(out, MessageType.HAVE, i));
+        requests = batch(i -> FrameCodec.encode(out, MessageType.REQUEST, i, 0, 16384));
+    }
+
+    private interface Encoder {
+        void encode(int i);
+    }
+
+    private ByteBuffer batch(Encoder encoder) {
+        out.clear();
+        for (int i = 0; i < BATCH; i++)
+            encoder.encode(i);
+        out.flip();
+        ByteBuffer frames = ByteBuffer.allocateDirect(out.remaining());
+        return frames.put(out).flip();
+    }
+
+    private static int decode(FrameDecoder decoder, ByteBuffer frames, Blackhole blackhole) throws IOException {
+        decoder.buffer().put(frames.duplicate());
+        return decoder.decodeFrames((type, payload) -> {
+            blackhole.consume(type);
+            blackhole.consume(payload.remaining() >= 4 ? payload.getInt(payload.position()) : 0);
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public ByteBuffer encodeChoke() {
+        out.clear();
+        for (int i = 0; i < BATCH; i++)
+            FrameCodec.encode(out, MessageType.CHOKE);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public ByteBuffer encodeHave() {
+        out.clear();
+        for (int i = 0; i < BATCH; i++)
+            FrameCodec.encode(out, MessageType.HAVE, i);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public ByteBuffer encodeRequest() {
+        out.clear();
+        for (int i = 0; i < BATCH; i++)
+            FrameCodec.encode(out, MessageType.REQUEST, i, 0, 16384);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int decodeChoke(Blackhole blackhole) throws IOException {
+        return decode(decoder, chokes, blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int decodeHave(Blackhole blackhole) throws IOException {
+        return decode(decoder, haves, blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int decodeRequest(Blackhole blackhole) throws IOException {
+        return decode(decoder, requests, blackhole);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBitfield(Payload p) {
+        p.out.clear();
+        FrameCodec.encode(p.out, MessageType.BITFIELD, p.payload);
+        return p.out;
+    }
+
+    @Benchmark
+    public ByteBuffer encodePiece(Payload p) {
+        p.out.clear();
+        FrameCodec.encode(p.out, MessageType.PIECE, p.payload);
+        return p.out;
+    }
+
+    @Benchmark
+    public byte[] encodePieceMessage(Payload p) {
+        return new Message(MessageType.PIECE, p.payload).encode();
+    }
+
+    @Benchmark
+    public int decodeBitfield(Payload p, Blackhole blackhole) throws IOException {
+        return decode(p.decoder, p.bitfieldFrame, blackhole);
+    }
+
+    @Benchmark
+    public int decodePiece(Payload p, Blackhole blackhole) throws IOException {
+        return decode(p.decoder, p.pieceFrame, blackhole);
+    }
+}
@@ -0,0 +1,94 @@
+package Peer;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Bitfield} operations from a thousand to a million pieces. Encoding
+ * and decoding use a bitfield with a random half of the pieces. The
+ * interesting-index checks compare a peer missing only the last piece with a
+ * seeder, so they scan the whole bitfield, which is the worst case.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitfieldBenchmark {
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int numPieces;
+
+	private Bitfield half;
+	private Bitfield decoded;
+	private ByteBuffer encoded;
+	private ByteBuffer wire; // half, as received in a BITFIELD message
+	private Bitfield almostDone;
+	private Bitfield seeder;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		half = new Bitfield(numPieces);
+		for (int i = 0; i < numPieces; i++)
+			if (random.nextBoolean())
+				half.turnOnBit(i);
+		decoded = new Bitfield(numPieces);
+		encoded = ByteBuffer.allocateDirect((numPieces + 7) >>> 3);
+		wire = ByteBuffer.allocateDirect(encoded.capacity());
+		half.encode(wire);
+
+		almostDone = new Bitfield(numPieces);
+		for (int i = 0; i < numPieces - 1; i++)
+			almostDone.turnOnBit(i);
+		seeder = new Bitfield(numPieces);
+		seeder.turnOnAll();
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return half.encode();
+	}
+
+	@Benchmark
+	public ByteBuffer encodeInto() {
+		encoded.clear();
+		half.encode(encoded);
+		return encoded;
+	}
+
+	@Benchmark
+	public Bitfield decode() {
+		decoded.setBitField(wire.rewind());
+		return decoded;
+	}
+
+	@Benchmark
+	public int interestingIndex() {
+		return almostDone.getInterestingIndex(seeder);
+	}
+
+	@Benchmark
+	public int countInteresting() {
+		return almostDone.countInteresting(seeder);
+	}
+
+	@Benchmark
+	public boolean isFinished() {
+		return almostDone.isFinished();
+	}
+}
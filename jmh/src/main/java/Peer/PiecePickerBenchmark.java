@@ -0,0 +1,125 @@
+package Peer;
+
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of choosing a piece with {@link PiecePicker} for {@value #NEIGHBORS}
+ * neighbors, taken in turns, when we have a quarter of the file. How the
+ * pieces are spread over the neighbors:
+ *
+ * UNIFORM     every neighbor has every piece with even odds.
+ * SKEWED      a few pieces are everywhere, most are on one or two neighbors.
+ * FLASH_CROWD one neighbor seeds, the others have a few pieces each.
+ *
+ * Every piece is somewhere. pick asks over and over with nothing requested;
+ * pickAndRequest requests each pick as a download does, so the walk grows as
+ * pieces are taken, and starts over once every piece is requested.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PiecePickerBenchmark {
+
+	private static final int NEIGHBORS = 8;
+
+	public enum Distribution {
+		UNIFORM,
+		SKEWED,
+		FLASH_CROWD,
+	}
+
+	@Param({ "1000", "100000" })
+	public int numPieces;
+
+	@Param
+	public Distribution distribution;
+
+	@Param({ "RAREST", "RANDOM" }) // PiecePicker.Policy, which the generated code can't see
+	public String policy;
+
+	private PiecePicker picker;
+	private Bitfield mine;
+	private Vector<Boolean> requested;
+	private final Bitfield[] neighbors = new Bitfield[NEIGHBORS];
+	private int next = 0; // neighbor to pick for
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		mine = new Bitfield(numPieces);
+		for (int i = 0; i < numPieces; i++)
+			if (random.nextInt(4) == 0)
+				mine.turnOnBit(i);
+
+		for (int n = 0; n < NEIGHBORS; n++)
+			neighbors[n] = new Bitfield(numPieces);
+		for (int i = 0; i < numPieces; i++) {
+			boolean popular = random.nextInt(16) == 0;
+			boolean anywhere = false;
+			for (int n = 0; n < NEIGHBORS; n++) {
+				if (random.nextDouble() < odds(n, popular)) {
+					neighbors[n].turnOnBit(i);
+					anywhere = true;
+				}
+			}
+			if (!anywhere)
+				neighbors[random.nextInt(NEIGHBORS)].turnOnBit(i);
+		}
+
+		requested = new Vector<>(numPieces);
+		for (int i = 0; i < numPieces; i++)
+			requested.add(false);
+		picker = new PiecePicker(PiecePicker.Policy.valueOf(policy), mine, requested);
+		for (Bitfield theirs : neighbors)
+			picker.addBitfield(theirs);
+	}
+
+	// Chance that neighbor n has a piece
+	private double odds(int n, boolean popular) {
+		switch (distribution) {
+			case SKEWED:
+				return popular ? 0.9 : 0.15;
+			case FLASH_CROWD:
+				return n == 0 ? 1.0 : 0.02;
+			default:
+				return 0.5;
+		}
+	}
+
+	@Benchmark
+	public int pick() {
+		int neighbor = next;
+		next = (next + 1) % NEIGHBORS;
+		return picker.pick(neighbors[neighbor], neighbor);
+	}
+
+	@Benchmark
+	public int pickAndRequest() {
+		int neighbor = next;
+		next = (next + 1) % NEIGHBORS;
+		int piece = picker.pick(neighbors[neighbor], neighbor);
+		if (piece != -1)
+			picker.markRequested(piece);
+		else if (picker.isEndgame())
+			for (int i = 0; i < numPieces; i++)
+				picker.release(i);
+		return piece;
+	}
+}
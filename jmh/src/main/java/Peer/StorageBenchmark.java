@@ -0,0 +1,114 @@
+package Peer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Piece reads and writes through {@link FileManager} for each StorageMode,
+ * going round a {@value #FILE_SIZE_MB}MB file. Writes are done on the calling
+ * thread (WriteQueueSize 0) from a direct buffer, as received pieces are, and
+ * never synced, so this measures the storage path rather than the disk. Reads
+ * go into a byte array, or into a direct buffer as uploads used to.
+ *
+ * Pieces per second times pieceSize is the throughput. Like
+ * Benchmarks.UploadBenchmark this works in peer_9998/ under the current
+ * directory, which is removed afterwards.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+
+	private static final int PEER_ID = 9998;
+	private static final int FILE_SIZE_MB = 64;
+
+	@Param({ "file", "mmap" })
+	public String storageMode;
+
+	@Param({ "16384", "262144" })
+	public int pieceSize;
+
+	private FileManager files;
+	private int numPieces;
+	private int next = 0; // piece to read or write
+	private ByteBuffer data;
+	private byte[] bytes;
+	private ByteBuffer direct;
+
+	@Setup
+	public void setup() throws IOException {
+		File config = File.createTempFile("Common.bench", ".cfg");
+		try (FileWriter writer = new FileWriter(config)) {
+			writer.write("NumberOfPreferredNeighbors 1\nUnchokingInterval 5\nOptimisticUnchokingInterval 5\n");
+			writer.write("FileName bench.dat\nFileSize " + FILE_SIZE_MB * 1024 * 1024 + "\nPieceSize " + pieceSize + "\n");
+			writer.write("StorageMode " + storageMode + "\nWriteQueueSize 0\nSyncPolicy none\n");
+		}
+		PeerConfig swarm = new PeerConfig(new File("."), PeerConfig.ReadPeerProperties(config.getPath()));
+		config.delete();
+
+		files = new FileManager(swarm, PEER_ID, false, Runnable::run); // nothing is queued with WriteQueueSize 0
+		numPieces = swarm.getPeerCommonProps().getNumberPieces();
+		byte[] random = new byte[pieceSize];
+		new Random(1).nextBytes(random);
+		data = ByteBuffer.allocateDirect(pieceSize).put(random);
+		bytes = new byte[pieceSize];
+		direct = ByteBuffer.allocateDirect(pieceSize);
+
+		for (int i = 0; i < numPieces; i++) // so reads find every piece in place
+			files.writePiece(new Piece(i, data, pieceSize, null));
+	}
+
+	@TearDown
+	public void tearDown() {
+		File directory = new File("peer_" + PEER_ID);
+		File[] contents = directory.listFiles();
+		if (contents != null)
+			for (File file : contents)
+				file.delete();
+		directory.delete();
+	}
+
+	private int nextPiece() {
+		int which = next;
+		next = (next + 1) % numPieces;
+		return which;
+	}
+
+	@Benchmark
+	public void writePiece() throws IOException {
+		files.writePiece(new Piece(nextPiece(), data, pieceSize, null));
+	}
+
+	@Benchmark
+	public byte[] readPiece() throws IOException {
+		files.readPiece(nextPiece(), bytes, pieceSize);
+		return bytes;
+	}
+
+	@Benchmark
+	public ByteBuffer readPieceDirect() throws IOException {
+		direct.clear();
+		files.readPiece(nextPiece(), direct);
+		return direct;
+	}
+}
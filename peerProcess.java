@@ -1,4 +1,10 @@
+import java.io.File;
+import java.util.Vector;
+
 import Peer.Peer;
+import Peer.PeerConfig;
+import Peer.RunnerMode;
+import Peer.SwarmHost;
 import Peer.TCPClient;
 
 class peerProcess {
@@ -31,7 +37,47 @@ class peerProcess {
     }
 
     /**
-     * Starts the peer process.
+     * Parses the optional runner mode from command line arguments.
+     *
+     * @param args The command line arguments.
+     * @return The parsed runner mode, THREAD if none was given, or null if it could not be parsed.
+     */
+
+    public static RunnerMode parseRunnerMode(String[] args) {
+        if (args.length < 2) {
+            return RunnerMode.THREAD;
+        }
+        try {
+            return RunnerMode.valueOf(args[1].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid runner mode: " + args[1]);
+        }
+
+        return null;
+    }
+
+    /**
+     * Parses the swarm directories from command line arguments, each holding a
+     * swarm's Common.small.cfg and PeerInfo.small.cfg.
+     *
+     * @param args The command line arguments.
+     * @return The directories given after the runner mode, the current one if none were.
+     */
+
+    public static Vector<File> parseSwarmDirectories(String[] args) {
+        Vector<File> directories = new Vector<>();
+        for (int i = 2; i < args.length; i++)
+            directories.add(new File(args[i]));
+        if (directories.isEmpty())
+            directories.add(new File("."));
+        return directories;
+    }
+
+    /**
+     * Starts the peer process: the peer joins every swarm given, all of them
+     * sharing the process's event loops, disk pool and scheduler.
+     *
+     * Usage: java peerProcess [peer id] [thread|nio|virtual] [swarm directory ...]
      *
      * @param args The command line arguments.
      */
@@ -44,16 +90,36 @@ class peerProcess {
             return;
         }
 
-        final Peer self = new Peer(peerId);
-        // self.startUnchokingTimerTask();
-        // self.startOptimisticUnchokingTimerTask();
+        final RunnerMode mode = parseRunnerMode(args);
+        if (mode == null) {
+            System.out.println("Invalid runner mode, expected one of thread, nio, virtual");
+            return;
+        }
+
+        final SwarmHost host = new SwarmHost();
+        final Vector<Thread> swarms = new Vector<>();
+        for (File directory : parseSwarmDirectories(args)) {
+            Thread swarm = new Thread(() -> {
+                final Peer self = new Peer(peerId, new PeerConfig(directory), host);
+
+                try {
+                    final TCPClient client = new TCPClient(self, mode);
+                    client.run();
+                } catch (Exception e) {
+                    self.logger.DebugLog(e.getStackTrace().toString());
+                    e.printStackTrace();
+                }
+            }, "swarm-" + directory.getPath());
+            swarms.add(swarm);
+            swarm.start();
+        }
 
         try {
-            final TCPClient client = new TCPClient(self);
-            client.run();
-        } catch (Exception e) {
-            self.logger.DebugLog(e.getStackTrace().toString());
+            for (Thread swarm : swarms)
+                swarm.join();
+        } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        host.close();
     }
 }
\ No newline at end of file